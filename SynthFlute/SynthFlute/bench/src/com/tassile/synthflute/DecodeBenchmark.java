@@ -0,0 +1,62 @@
+package com.tassile.synthflute;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * FrameDecoder on a buffer of pre-encoded frames, v1 (ASCII) or v2 (binary), in ns
+ * per frame. Every decoded key mask goes to the Blackhole.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DecodeBenchmark {
+	static final int FRAMES = 4096;
+
+	@Param({ "1", "2" })
+	public int version;
+
+	private FrameDecoder decoder;
+	private byte[] bytes;
+	private int len;
+
+	@Setup
+	public void setUp(final Blackhole bh){
+		bytes = new byte[FRAMES*FrameEncoder.MAX_ASCII_BYTES];
+		FrameEncoder enc = new FrameEncoder();
+		int n = 0;
+		for(int i=0; i<FRAMES; i++){
+			int mask = (i*37) & KeyState.MASK;
+			n += version == 2 ? enc.encode(mask, i, bytes, n) : FrameEncoder.encodeAscii(mask, bytes, n);
+		}
+		len = n;
+		decoder = new FrameDecoder(new FrameDecoder.Listener(){
+			public void onKeys(int mask){
+				bh.consume(mask);
+			}
+		});
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public long decode(){
+		decoder.feed(bytes, 0, len);
+		return decoder.frameCount();
+	}
+}
@@ -0,0 +1,66 @@
+package com.tassile.synthflute;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One effect over a block of noise-like input, tail running the whole time, in ns per
+ * sample. "graph" is the whole chain OfflineRenderer.graph() builds, timing included:
+ * compare it against the sum of its nodes to see what the accounting costs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class EffectBenchmark {
+	@Param({ "delay", "reverb", "filter", "gain", "graph" })
+	public String fx;
+
+	private DspNode node;
+	private DspGraph graph;
+	private final float[] buf = new float[Fixtures.BLOCK];
+	private int n = 0;
+
+	@Setup
+	public void setUp(){
+		if(fx.equals("delay")){
+			Delay delay = new Delay(Fixtures.SR, 500);
+			delay.setTime(350);
+			node = delay;
+		} else if(fx.equals("reverb")){
+			node = new Reverb(Fixtures.SR);
+		} else if(fx.equals("filter")){
+			node = new Filter(Fixtures.SR, Filter.LOWPASS, 2000f, 2f);
+		} else if(fx.equals("gain")){
+			node = new Gain(0.5f);
+		} else {
+			graph = OfflineRenderer.graph(Fixtures.SR, 2000f, 350, 0.3f, -6f);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Fixtures.BLOCK)
+	public float[] process(){
+		n = Fixtures.noise(buf, n);
+		if(graph != null){
+			graph.process(buf, 0, Fixtures.BLOCK);
+		} else {
+			node.process(buf, 0, Fixtures.BLOCK);
+		}
+		return buf;
+	}
+}
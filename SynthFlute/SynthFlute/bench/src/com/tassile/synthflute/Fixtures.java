@@ -0,0 +1,65 @@
+package com.tassile.synthflute;
+
+/**
+ * Set-up shared by the JMH suites, so that every suite measures the engine in the
+ * same state.
+ */
+class Fixtures {
+	static final int SR = 44100;
+	static final int BLOCK = RenderThread.BLOCK;
+
+	/**
+	 * A pool with every voice held, spread over the note table and past the attack so
+	 * the steady state is what gets measured. voices 0 is the mono engine with a chord
+	 * held.
+	 */
+	static SynthEngine engine(String osc, int voices, int threads){
+		SynthEngine engine = new SynthEngine(SR);
+		engine.setOscillatorType(OfflineRender.oscType(osc));
+		if(voices == 0){
+			engine.setKeyMask(0x31);
+			return engine;
+		}
+		engine.setPolyphonic(voices);
+		engine.setRenderThreads(threads);
+		engine.amp = 32767/voices;
+		for(int v=0; v<voices; v++){
+			engine.noteOn((v*7) % SynthEngine.NUM_NOTES);
+		}
+		short[] out = new short[BLOCK];
+		for(int i=0; i<8; i++){
+			engine.render(out, 0, BLOCK);
+		}
+		return engine;
+	}
+
+	static Oscillator oscillator(String osc){
+		if(osc.equals("sine")){
+			return new SineOscillator(SR);
+		} else if(osc.equals("table")){
+			return new TableOscillator(SR);
+		} else if(osc.equals("dds")){
+			return new DdsOscillator(SR);
+		} else if(osc.equals("saw")){
+			return new BlepOscillator(SR, BlepOscillator.SAW);
+		} else if(osc.equals("square")){
+			return new BlepOscillator(SR, BlepOscillator.SQUARE);
+		} else if(osc.equals("triangle")){
+			return new BlepOscillator(SR, BlepOscillator.TRIANGLE);
+		} else if(osc.equals("flute")){
+			return new FluteOscillator(SR);
+		}
+		throw new IllegalArgumentException("unknown oscillator " + osc);
+	}
+
+	/**
+	 * Fills buf with cheap noise-like input, carrying on from n.
+	 * @return the next n
+	 */
+	static int noise(float[] buf, int n){
+		for(int i=0; i<buf.length; i++){
+			buf[i] = ((n++*1103515245 + 12345) >> 16 & 0xFF)/256f - 0.5f;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,174 @@
+package com.tassile.synthflute;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the single-flute path over loopback TCP, the way BTService runs it over
+ * RFCOMM: NioTransport -> FluteServer -> EventQueue -> RenderThread -> a simulated
+ * device.
+ *
+ * One flute connects and plays; a second one is turned away while it does. The first
+ * is hung up, as when the user picks another device, and the second plays in its
+ * place. Last, a dial to a port nobody listens on has to come back as a failed
+ * connect. Every frame a flute sent while playing should have been decoded and nothing
+ * lost to a full queue; anything else and this exits with status 1.
+ *
+ * Usage: java com.tassile.synthflute.FluteHarness [frames per flute]
+ */
+public class FluteHarness {
+	static final int SR = 44100;
+	static final long WAIT_MS = 5000;
+
+	public static void main(String[] args) throws Exception {
+		final int frames = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+		FluteServer server = new FluteServer(new FluteServer.Output() {
+			public SynthEngine newEngine(){
+				SynthEngine engine = new SynthEngine(SR);
+				engine.setPolyphonic(4);
+				return engine;
+			}
+
+			public LatencyConfig latency(){
+				return LatencyConfig.choose(LatencyConfig.MODE_LOW_LATENCY, SR, 0);
+			}
+
+			public AudioSink newSink(LatencyConfig latency){
+				return new NullSink(SR, latency.maxBufferFrames());
+			}
+		});
+		server.setTracing(true);
+		NioTransport listening = new NioTransport(new InetSocketAddress("127.0.0.1", 0));
+		listening.listen(server);
+		String address = "127.0.0.1:" + listening.localPort();
+
+		Flutes flutes = new Flutes();
+		NioTransport dialing = new NioTransport(null);
+		dialing.listen(flutes);
+
+		boolean ok = true;
+		dialing.connect(address);
+		Transport.Connection first = flutes.next();
+		FluteServer.Session one = waitForSession(server, null);
+		dialing.connect(address);
+		flutes.next();
+		ok &= check("second flute refused while the first plays", flutes.waitClosed(1));
+		ok &= check("first flute still the one playing", server.session() == one);
+
+		ok &= play("first flute", first, one, frames);
+		server.hangUp();
+		ok &= check("first flute hung up", flutes.waitClosed(2));
+
+		dialing.connect(address);
+		Transport.Connection third = flutes.next();
+		FluteServer.Session two = waitForSession(server, one);
+		ok &= check("next flute takes its place", two != null);
+		ok &= play("next flute", third, two, frames);
+
+		ServerSocket dead = new ServerSocket(0);
+		int deadPort = dead.getLocalPort();
+		dead.close();
+		dialing.connect("127.0.0.1:" + deadPort);
+		ok &= check("dial to a closed port reported failed", flutes.waitFailed(1));
+
+		System.out.println("input to write latency: " + two.renderThread.getLatency().summary());
+		System.out.println("output " + two.renderThread.getBufferControl());
+		dialing.close();
+		listening.close();
+		ok &= check("playing flute dropped on close", server.session() == null);
+		if(!ok){
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Sends frames v2 frames, a note-on or note-off every millisecond, and waits for
+	 * all of them to come out of the decoder.
+	 */
+	static boolean play(String what, Transport.Connection c, FluteServer.Session s, int frames) throws Exception {
+		FrameEncoder enc = new FrameEncoder();
+		long t0 = System.currentTimeMillis();
+		for(int i=0; i<frames; i++){
+			byte[] frame = new byte[FrameDecoder.V2_BYTES];
+			enc.encode((i & 1) == 0 ? 1 << (i % 7) : 0, System.currentTimeMillis() - t0, frame, 0);
+			c.write(frame);
+			Thread.sleep(1);
+		}
+		long deadline = System.currentTimeMillis() + WAIT_MS;
+		while(s.decoder.frameCount() < frames && System.currentTimeMillis() < deadline){
+			Thread.sleep(10);
+		}
+		System.out.println(String.format("%s: sent %d, decoded %d, malformed %d, dropped %d",
+				what, frames, s.decoder.frameCount(), s.decoder.malformedCount(), s.droppedCount()));
+		return check(what + " decoded every frame", s.decoder.frameCount() == frames && s.droppedCount() == 0);
+	}
+
+	static FluteServer.Session waitForSession(FluteServer server, FluteServer.Session not) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MS;
+		FluteServer.Session s;
+		while(((s = server.session()) == null || s == not) && System.currentTimeMillis() < deadline){
+			Thread.sleep(1);
+		}
+		return s == not ? null : s;
+	}
+
+	static boolean check(String what, boolean pass){
+		System.out.println(what + ": " + (pass ? "ok" : "FAIL"));
+		return pass;
+	}
+
+	/**
+	 * The flute side of the links: hands over the ones that came up, counts those
+	 * closed on us and the dials that failed.
+	 */
+	static class Flutes implements Transport.Listener {
+		final LinkedBlockingQueue<Transport.Connection> up = new LinkedBlockingQueue<Transport.Connection>();
+		volatile int closed = 0; // only ever changed on the selector thread
+		volatile int failed = 0;
+
+		public boolean onConnected(Transport.Connection c){
+			up.add(c);
+			return true;
+		}
+
+		public void onData(Transport.Connection c, byte[] b, int off, int len){
+			// the server's hello
+		}
+
+		public void onDisconnected(Transport.Connection c, IOException cause){
+			closed++;
+		}
+
+		public void onConnectFailed(String address, IOException cause){
+			failed++;
+		}
+
+		Transport.Connection next() throws IOException, InterruptedException {
+			Transport.Connection c = up.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+			if(c == null){
+				throw new IOException("no link came up");
+			}
+			return c;
+		}
+
+		boolean waitClosed(int n) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + WAIT_MS;
+			while(closed < n && System.currentTimeMillis() < deadline){
+				Thread.sleep(1);
+			}
+			return closed == n;
+		}
+
+		boolean waitFailed(int n) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + WAIT_MS;
+			while(failed < n && System.currentTimeMillis() < deadline){
+				Thread.sleep(1);
+			}
+			return failed == n;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package com.tassile.synthflute;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays several flutes through one Hub on a plain JVM, with pipes standing in for the
+ * Bluetooth links.
+ *
+ * Every flute has a sender thread writing v2 frames into its pipe and a reader thread
+ * feeding its Hub client, as a link of RfcommTransport does; the hub runs on a
+ * RenderThread into a simulated device with a real buffer, so a render thread held
+ * up by anything shows as underruns. Part way through, one link stalls (the sender
+ * stops writing but keeps the pipe open, so its reader blocks in read() for good) and
+ * another drops (the pipe is closed). The rest should carry on untouched: same frame
+ * counts, no underruns, and the dropped flute should leave the mix once its notes
+ * have died away.
+ *
+ * The flutes play on the same beat, so with the full MAX_CLIENTS (the default) their
+ * notes all sound at once. The hub must make room for them: if any output sample hits
+ * the 16-bit rails this exits with status 1.
+ *
+ * Usage: java com.tassile.synthflute.HubHarness [flutes] [seconds] [block]
+ */
+public class HubHarness {
+	static final int SR = 44100;
+	static final int NOTE_MS = 40; // a note-on or note-off every NOTE_MS per flute
+
+	public static void main(String[] args) throws Exception {
+		final int flutes = args.length > 0 ? Integer.parseInt(args[0]) : Hub.MAX_CLIENTS;
+		final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		final int block = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+		final long stallAt = seconds*1000L/3;
+		if(flutes < 3 || flutes > Hub.MAX_CLIENTS){
+			throw new IllegalArgumentException("need 3 to " + Hub.MAX_CLIENTS + " flutes");
+		}
+
+		Hub hub = new Hub(SR, block);
+		LatencyHistogram trace = new LatencyHistogram();
+		hub.setLatencyHistogram(trace);
+
+		Sender[] senders = new Sender[flutes];
+		Hub.Client[] clients = new Hub.Client[flutes];
+		for(int f=0; f<flutes; f++){
+			SynthEngine engine = new SynthEngine(SR);
+			engine.setPolyphonic(4);
+			clients[f] = hub.join("flute" + f, engine);
+			PipedOutputStream wire = new PipedOutputStream();
+			PipedInputStream in = new PipedInputStream(wire, 4096);
+			// flute 0 stalls, flute 1 drops, the others play to the end
+			senders[f] = new Sender(wire, f, seconds*1000L, f == 0 ? stallAt : -1, f == 1 ? stallAt : -1);
+			new Reader(in, clients[f]).start();
+		}
+
+		ClipSink sink = new ClipSink(SR, 4*block);
+		RenderThread render = new RenderThread(hub, sink, 2*block);
+		render.start();
+		for(int f=0; f<flutes; f++){
+			senders[f].start();
+		}
+		for(int f=0; f<flutes; f++){
+			if(senders[f].stallMs < 0){
+				senders[f].join();
+			}
+		}
+		LockSupport.parkNanos(500*1000000L); // release tails
+		render.halt();
+		render.join();
+		hub.prune();
+
+		System.out.println(flutes + " flutes, " + seconds + "s, block " + block
+				+ "; flute0 stalls and flute1 drops at " + stallAt + "ms");
+		for(int f=0; f<flutes; f++){
+			System.out.println(String.format("%-8s sent %4d  %s", clients[f].name, senders[f].sent, clients[f]));
+		}
+		System.out.println("clients left in the mix: " + hub.clientCount());
+		System.out.println("decode to hand-off: " + trace.summary());
+		System.out.println("output " + render.getBufferControl());
+		System.out.println("simulated device underruns " + sink.underrunCount());
+		System.out.println("dsp time per block\n" + hub.getGraph().summary(SR));
+		System.out.println("output peak " + sink.peak + ", clipped samples " + sink.clipped);
+		if(sink.clipped > 0){
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * The simulated device, also watching for samples on the rails. Only the render
+	 * thread writes.
+	 */
+	static class ClipSink extends NullSink {
+		volatile int peak = 0;
+		volatile long clipped = 0;
+
+		ClipSink(int sr, int bufferFrames){
+			super(sr, bufferFrames);
+		}
+
+		public int write(short[] buf, int off, int len){
+			for(int i=off; i<off+len; i++){
+				int v = Math.abs(buf[i]);
+				if(v > peak){
+					peak = v;
+				}
+				if(v >= Short.MAX_VALUE){
+					clipped++;
+				}
+			}
+			return super.write(buf, off, len);
+		}
+	}
+
+	/**
+	 * A fake flute: alternates note-on and note-off frames on a fixed beat.
+	 */
+	static class Sender extends Thread {
+		final PipedOutputStream wire;
+		final int index;
+		final long runMs;
+		final long stallMs; // stop writing here but keep the link open, or -1
+		final long dropMs;  // close the link here, or -1
+		int sent = 0;
+
+		Sender(PipedOutputStream wire, int index, long runMs, long stallMs, long dropMs){
+			super("sender" + index);
+			setDaemon(true);
+			this.wire = wire;
+			this.index = index;
+			this.runMs = runMs;
+			this.stallMs = stallMs;
+			this.dropMs = dropMs;
+		}
+
+		public void run(){
+			Random rnd = new Random(index);
+			FrameEncoder enc = new FrameEncoder();
+			byte[] frame = new byte[FrameDecoder.V2_BYTES];
+			long start = System.nanoTime();
+			try {
+				for(long ms=0; ms<runMs; ms+=NOTE_MS){
+					LockSupport.parkNanos(start + ms*1000000L - System.nanoTime());
+					if(ms >= stallMs && stallMs >= 0){
+						continue; // stalled: nothing more on the wire, but still open
+					}
+					if(ms >= dropMs && dropMs >= 0){
+						wire.close();
+						return;
+					}
+					int mask = (sent & 1) == 0 ? 0x80 | (36 + rnd.nextInt(24)) : 0;
+					int n = enc.encode(mask, System.nanoTime()/1000000, frame, 0);
+					wire.write(frame, 0, n);
+					wire.flush();
+					sent++;
+				}
+				if(stallMs < 0){
+					wire.close();
+					return;
+				}
+				// a pipe whose writer thread has died reads as broken, so a stalled
+				// flute's thread has to stay around
+				while(true){
+					LockSupport.park();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * What an RfcommTransport link's reader does, on a pipe.
+	 */
+	static class Reader extends Thread {
+		final InputStream in;
+		final Hub.Client client;
+
+		Reader(InputStream in, Hub.Client client){
+			super("reader " + client.name);
+			setDaemon(true); // the stalled one never returns from read()
+			this.in = in;
+			this.client = client;
+		}
+
+		public void run(){
+			byte[] buffer = new byte[64];
+			try {
+				int n;
+				while((n = in.read(buffer)) >= 0){
+					client.feed(buffer, 0, n);
+				}
+			} catch (IOException e) {
+				// pipe broken
+			}
+			client.leave();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.tassile.synthflute;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures input-to-audio latency on a plain JVM, no phone or flute needed.
+ *
+ * A sender thread writes note-on/note-off frames into a pipe at random intervals and
+ * remembers when it sent each note-on. An input thread decodes the pipe into an
+ * EventQueue exactly like ConnectedThread does, and the main thread runs the
+ * EventRenderer loop into a paced NullSink, which sleeps out each block the way a
+ * blocking AudioTrack.write would. Every rendered block is scanned for the first sample of each note, and the
+ * time of that sample (block hand-off plus its offset) minus the send time goes into
+ * a histogram.
+ *
+ * Usage: java com.tassile.synthflute.LatencyHarness [notes] [block] [v1|v2]
+ */
+public class LatencyHarness {
+	static final int SR = 44100;
+	static final int THRESHOLD = 64; // |sample| that counts as sound
+
+	public static void main(String[] args) throws Exception {
+		final int notes = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		final int block = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+		final boolean v2 = args.length > 2 && args[2].equals("v2");
+
+		final long[] sent = new long[notes];
+		final PipedOutputStream wire = new PipedOutputStream();
+		PipedInputStream in = new PipedInputStream(wire, 4096);
+		EventQueue queue = new EventQueue(256);
+		SynthEngine engine = new SynthEngine(SR);
+		engine.setPolyphonic(4);
+		EventRenderer renderer = new EventRenderer(engine, queue, block);
+		LatencyHistogram trace = new LatencyHistogram();
+		renderer.setLatencyHistogram(trace);
+		LatencyHistogram onset = new LatencyHistogram();
+
+		Thread sender = new Thread("sender"){
+			public void run(){
+				Random rnd = new Random(42);
+				FrameEncoder enc = new FrameEncoder();
+				byte[] frame = new byte[FrameEncoder.MAX_ASCII_BYTES];
+				try {
+					for(int i=0; i<notes; i++){
+						// long enough apart for the release tail to die away
+						LockSupport.parkNanos((120 + rnd.nextInt(60))*1000000L);
+						sent[i] = System.nanoTime();
+						write(enc, 0x80 | (48 + rnd.nextInt(12)), frame); // PLAYNOTE + a note
+						LockSupport.parkNanos(20*1000000L);
+						write(enc, 0, frame);
+					}
+					wire.close();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			private void write(FrameEncoder enc, int mask, byte[] frame) throws IOException {
+				int n = v2 ? enc.encode(mask, System.nanoTime()/1000000, frame, 0)
+						: FrameEncoder.encodeAscii(mask, frame, 0);
+				wire.write(frame, 0, n);
+				wire.flush();
+			}
+		};
+
+		InputThread input = new InputThread(in, queue);
+		input.start();
+		sender.start();
+
+		short[] out = new short[block];
+		long blockNanos = block*1000000000L/SR;
+		NullSink sink = new NullSink(SR, true);
+		sink.start();
+		boolean sounding = false;
+		int matched = 0;
+		while(matched < notes && (sender.isAlive() || !queue.isEmpty() || sounding)){
+			renderer.render(out, System.nanoTime());
+			long handOff = System.nanoTime();
+			renderer.delivered(handOff);
+
+			for(int i=0; i<block; i++){
+				boolean loud = out[i] > THRESHOLD || out[i] < -THRESHOLD;
+				if(loud && !sounding && matched < notes){
+					onset.record(handOff + i*1000000000L/SR - sent[matched++]);
+				}
+				if(loud){
+					sounding = true;
+				}
+			}
+			if(engine.activeVoices() == 0){
+				sounding = false;
+			}
+			sink.write(out, 0, block);
+		}
+
+		System.out.println("block " + block + " frames (" + blockNanos/1000 + "us), protocol v" + (v2 ? 2 : 1));
+		System.out.println("decode to hand-off: " + trace.summary());
+		System.out.println("send to onset:      " + onset.summary());
+		System.out.println("frames " + input.decoder.frameCount() + " malformed " + input.decoder.malformedCount());
+	}
+
+	static class InputThread extends Thread {
+		final PipedInputStream in;
+		final FrameDecoder decoder;
+
+		InputThread(PipedInputStream in, final EventQueue queue){
+			super("input");
+			setDaemon(true);
+			this.in = in;
+			decoder = new FrameDecoder(new FrameDecoder.Listener(){
+				public void onKeys(int mask){
+					queue.offer(mask, System.nanoTime());
+				}
+			});
+		}
+
+		public void run(){
+			try {
+				while(decoder.read(in) >= 0){
+				}
+			} catch (IOException e) {
+				// pipe closed
+			}
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package com.tassile.synthflute;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What RenderThread does per block (events, render, sink) into an unpaced NullSink,
+ * with an event every block to keep the scheduling path busy, in ns per output sample.
+ * voices 0 is the mono engine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LoopBenchmark {
+	@Param({ "0", "16" })
+	public int voices;
+
+	private EventQueue queue;
+	private EventRenderer renderer;
+	private NullSink sink;
+	private final short[] out = new short[Fixtures.BLOCK];
+	private int n = 0;
+
+	@Setup
+	public void setUp(){
+		SynthEngine engine = new SynthEngine(Fixtures.SR);
+		if(voices > 0){
+			engine.setPolyphonic(voices);
+		}
+		queue = new EventQueue(16);
+		renderer = new EventRenderer(engine, queue, Fixtures.BLOCK);
+		sink = new NullSink(Fixtures.SR, false);
+		sink.start();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Fixtures.BLOCK)
+	public short[] block(){
+		long now = System.nanoTime();
+		queue.offer(0x80 | (n++ & 0x3F), now);
+		renderer.render(out, now);
+		renderer.delivered(now);
+		sink.write(out, 0, Fixtures.BLOCK);
+		return out;
+	}
+}
@@ -0,0 +1,58 @@
+package com.tassile.synthflute;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Key mask -> note index -> frequency, or phase increment, over every mask, in ns per
+ * lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class NoteBenchmark {
+	static final int MASKS = KeyState.MASK + 1;
+
+	private SynthEngine engine;
+	private NoteTable notes;
+
+	@Setup
+	public void setUp(){
+		engine = new SynthEngine(Fixtures.SR);
+		notes = Tuning.DEFAULT.table(Fixtures.SR);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MASKS)
+	public double lookup(){
+		double acc = 0;
+		for(int mask=0; mask<MASKS; mask++){
+			acc += engine.frequency(SynthEngine.noteIndex(mask));
+		}
+		return acc;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MASKS)
+	public long increment(){
+		long acc = 0;
+		for(int mask=0; mask<MASKS; mask++){
+			acc += notes.increment(SynthEngine.noteIndex(mask));
+		}
+		return acc;
+	}
+}
@@ -0,0 +1,47 @@
+package com.tassile.synthflute;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One oscillator on its own, a block at a time, in ns per sample: the bare inner loop
+ * without the engine's mixing and scaling around it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class OscillatorBenchmark {
+	@Param({ "sine", "table", "dds", "saw", "square", "triangle", "flute" })
+	public String osc;
+
+	private Oscillator oscillator;
+	private final float[] buf = new float[Fixtures.BLOCK];
+
+	@Setup
+	public void setUp(){
+		oscillator = Fixtures.oscillator(osc);
+		oscillator.setFrequency(440.0);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Fixtures.BLOCK)
+	public float[] render(){
+		oscillator.render(buf, 0, Fixtures.BLOCK, 0.5f);
+		return buf;
+	}
+}
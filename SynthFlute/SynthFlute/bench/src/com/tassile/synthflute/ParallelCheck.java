@@ -0,0 +1,126 @@
+package com.tassile.synthflute;
+
+/**
+ * Checks the voice split of VoiceWorkers against rendering on one thread, and measures
+ * where it starts to pay.
+ *
+ * Output: for each voice count and thread count, two engines get the same notes (held,
+ * then released and restarted part way, so voices end during split blocks) and render
+ * the same blocks, one serially and one split. Sample for sample the two may only
+ * differ by rounding, at most MAX_LSB; anything more and this exits with status 1.
+ *
+ * Threshold: with the threshold moved out of the way, the time per sample split over
+ * two threads against serial, for 1 to 8 active voices per thread. The first count
+ * where the split wins is where VoiceWorkers.MIN_VOICES_PER_THREAD should be; it is
+ * "never" on a machine with one core, where the workers can't run alongside.
+ *
+ * Usage: java com.tassile.synthflute.ParallelCheck [osc]
+ */
+public class ParallelCheck {
+	static final int SR = 44100;
+	static final int BLOCK = RenderThread.BLOCK;
+	static final int BLOCKS = 400;
+	static final int MAX_LSB = 1;
+	static final int[] VOICES = { 4, 8, 16, 32 };
+	static final int[] THREADS = { 2, 3, 4 };
+
+	public static void main(String[] args) throws Exception {
+		String osc = args.length > 0 ? args[0] : "flute";
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.println(osc + ", " + BLOCKS + " blocks of " + BLOCK + ", " + cores + " cores");
+
+		boolean ok = true;
+		for(int v=0; v<VOICES.length; v++){
+			for(int t=0; t<THREADS.length; t++){
+				int diff = compare(osc, VOICES[v], THREADS[t]);
+				boolean pass = diff <= MAX_LSB;
+				ok &= pass;
+				System.out.println(String.format("output  %2d voices %d threads: max diff %d LSB %s",
+						VOICES[v], THREADS[t], diff, pass ? "ok" : "FAIL"));
+			}
+		}
+
+		int pays = -1;
+		for(int perThread=1; perThread<=8; perThread++){
+			int voices = 2*perThread;
+			double serial = nsPerSample(osc, voices, 1);
+			double split = nsPerSample(osc, voices, 2);
+			if(pays < 0 && split < serial){
+				pays = perThread;
+			}
+			System.out.println(String.format("timing  %d voices per thread: serial %7.1f ns/sample, 2 threads %7.1f",
+					perThread, serial, split));
+		}
+		System.out.println("splitting pays from " + (pays < 0 ? "never" : pays + " voices per thread")
+				+ ", MIN_VOICES_PER_THREAD is " + VoiceWorkers.MIN_VOICES_PER_THREAD);
+		if(!ok){
+			System.exit(1);
+		}
+	}
+
+	static SynthEngine engine(String osc, int voices, int threads){
+		SynthEngine engine = new SynthEngine(SR);
+		engine.setOscillatorType(OfflineRender.oscType(osc));
+		engine.setPolyphonic(voices);
+		engine.setRenderThreads(threads, threads);
+		engine.amp = 32767/voices;
+		VoiceWorkers w = engine.getWorkers();
+		if(w != null){
+			w.setMinVoicesPerThread(1); // split every block, whatever the count
+		}
+		return engine;
+	}
+
+	/**
+	 * @return the largest difference between serial and split output, in LSB
+	 */
+	static int compare(String osc, int voices, int threads){
+		SynthEngine serial = engine(osc, voices, 1);
+		SynthEngine split = engine(osc, voices, threads);
+		short[] a = new short[BLOCK];
+		short[] b = new short[BLOCK];
+		int max = 0;
+		for(int blk=0; blk<BLOCKS; blk++){
+			if(blk == 0 || blk == BLOCKS/2){
+				for(int v=0; v<voices; v++){
+					serial.noteOn((v*7) % SynthEngine.NUM_NOTES);
+					split.noteOn((v*7) % SynthEngine.NUM_NOTES);
+				}
+			} else if(blk % 50 == 25){
+				// release half, so voices finish inside split blocks
+				for(int v=0; v<voices; v+=2){
+					serial.noteOff((v*7) % SynthEngine.NUM_NOTES);
+					split.noteOff((v*7) % SynthEngine.NUM_NOTES);
+				}
+			}
+			serial.render(a, 0, BLOCK);
+			split.render(b, 0, BLOCK);
+			for(int i=0; i<BLOCK; i++){
+				max = Math.max(max, Math.abs(a[i] - b[i]));
+			}
+		}
+		split.setRenderThreads(1);
+		return max;
+	}
+
+	static double nsPerSample(String osc, int voices, int threads){
+		SynthEngine engine = engine(osc, voices, threads);
+		for(int v=0; v<voices; v++){
+			engine.noteOn((v*7) % SynthEngine.NUM_NOTES);
+		}
+		short[] out = new short[BLOCK];
+		for(int i=0; i<2000; i++){
+			engine.render(out, 0, BLOCK); // warm up
+		}
+		long best = Long.MAX_VALUE;
+		for(int round=0; round<5; round++){
+			long t0 = System.nanoTime();
+			for(int i=0; i<500; i++){
+				engine.render(out, 0, BLOCK);
+			}
+			best = Math.min(best, System.nanoTime() - t0);
+		}
+		engine.setRenderThreads(1);
+		return (double) best/(500*BLOCK);
+	}
+}
@@ -0,0 +1,57 @@
+package com.tassile.synthflute;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Flute voices split over render threads (see VoiceWorkers), in ns per output sample.
+ * threads 1 is the serial baseline to compare against. The count is capped at the
+ * cores (see SynthEngine.setRenderThreads()), so on a smaller machine the higher
+ * counts measure the serial path; ParallelCheck times the split itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ParallelRenderBenchmark {
+	@Param({ "4", "8", "16", "32" })
+	public int voices;
+
+	@Param({ "1", "2", "4" })
+	public int threads;
+
+	private SynthEngine engine;
+	private final short[] out = new short[Fixtures.BLOCK];
+
+	@Setup
+	public void setUp(){
+		engine = Fixtures.engine("flute", voices, threads);
+	}
+
+	@TearDown
+	public void tearDown(){
+		engine.setRenderThreads(1);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Fixtures.BLOCK)
+	public short[] render(){
+		engine.render(out, 0, Fixtures.BLOCK);
+		return out;
+	}
+}
@@ -0,0 +1,50 @@
+package com.tassile.synthflute;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One engine block (RenderThread.BLOCK frames), per oscillator type and voice count, in
+ * ns per output sample. voices 0 is the mono engine. Run with -prof gc: the allocation
+ * rate should be 0.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RenderBenchmark {
+	@Param({ "sine", "table", "dds", "saw", "square", "triangle", "flute" })
+	public String osc;
+
+	@Param({ "0", "1", "4", "8", "16", "32" })
+	public int voices;
+
+	private SynthEngine engine;
+	private final short[] out = new short[Fixtures.BLOCK];
+
+	@Setup
+	public void setUp(){
+		engine = Fixtures.engine(osc, voices, 1);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Fixtures.BLOCK)
+	public short[] render(){
+		engine.render(out, 0, Fixtures.BLOCK);
+		return out;
+	}
+}
@@ -0,0 +1,188 @@
+package com.tassile.synthflute;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a Hub over loopback TCP: NioTransport -> HubServer -> Hub -> RenderThread,
+ * the path a Wi-Fi controller takes, at frame rates no flute would send.
+ *
+ * The flutes are the links of a second NioTransport that only connects, so one thread
+ * serves every peer on each side. One thread blasts v2 frames at all of them at a
+ * fixed rate, a batch per link per millisecond. Two more peers misbehave on plain
+ * sockets: one connects and never sends, one stops half way through a frame and keeps
+ * the link open. After the hub is full, extra peers keep connecting and must be
+ * turned away without disturbing anyone. Every flute that played should have had every
+ * frame it sent decoded, nothing lost to a full queue, and the device no underruns.
+ *
+ * Usage: java com.tassile.synthflute.TransportStress [flutes] [seconds] [frames/s per flute] [refused peers]
+ */
+public class TransportStress {
+	static final int SR = 44100;
+	static final int BLOCK = 256;
+
+	public static void main(String[] args) throws Exception {
+		final int flutes = args.length > 0 ? Integer.parseInt(args[0]) : Hub.MAX_CLIENTS - 2;
+		final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		final int rate = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+		final int extra = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+		if(flutes < 1 || flutes > Hub.MAX_CLIENTS - 2){
+			throw new IllegalArgumentException("need 1 to " + (Hub.MAX_CLIENTS - 2) + " flutes");
+		}
+
+		Hub hub = new Hub(SR, BLOCK);
+		LatencyHistogram trace = new LatencyHistogram();
+		hub.setLatencyHistogram(trace);
+		NullSink sink = new NullSink(SR, 4*BLOCK);
+		RenderThread render = new RenderThread(hub, sink, 2*BLOCK);
+		render.start();
+
+		HubServer server = new HubServer(hub, new HubServer.EngineFactory() {
+			public SynthEngine newEngine(){
+				SynthEngine engine = new SynthEngine(SR);
+				engine.setPolyphonic(4);
+				return engine;
+			}
+		});
+		NioTransport listening = new NioTransport(new InetSocketAddress("127.0.0.1", 0));
+		listening.listen(server);
+		String address = "127.0.0.1:" + listening.localPort();
+
+		// the misbehaving peers first, so they are in the mix the whole time
+		Socket idle = new Socket("127.0.0.1", listening.localPort());
+		Socket stalled = new Socket("127.0.0.1", listening.localPort());
+		OutputStream out = stalled.getOutputStream();
+		byte[] frame = new byte[FrameDecoder.V2_BYTES];
+		FrameEncoder.encodeV2(0x80 | 48, 0, 0, frame, 0);
+		out.write(frame, 0, 2);
+		out.flush();
+
+		// the flutes, all served by one thread
+		Peers peers = new Peers();
+		NioTransport connecting = new NioTransport(null);
+		connecting.listen(peers);
+		for(int f=0; f<flutes; f++){
+			connecting.connect(address);
+		}
+		while(peers.links.size() < flutes || server.connectionCount() < flutes + 2){
+			LockSupport.parkNanos(1000000L);
+		}
+
+		Blaster blaster = new Blaster(peers.links.toArray(new Transport.Connection[flutes]), rate, seconds*1000L);
+		blaster.start();
+		// the hub is full now: these are refused while the flutes play
+		for(int i=0; i<extra; i++){
+			connecting.connect(address);
+			LockSupport.parkNanos(seconds*1000000000L/2/Math.max(1, extra));
+		}
+		blaster.join();
+		LockSupport.parkNanos(200*1000000L); // let the last frames land
+
+		Hub.Client[] clients = hub.clients();
+		connecting.close();
+		idle.close();
+		stalled.close();
+		LockSupport.parkNanos(500*1000000L); // release tails
+		render.halt();
+		render.join();
+		listening.close();
+		hub.prune();
+
+		long received = 0;
+		long dropped = 0;
+		System.out.println(flutes + " flutes at " + rate + " frames/s for " + seconds + "s, one idle and one stalled peer, "
+				+ extra + " more turned away");
+		for(int i=0; i<clients.length; i++){
+			System.out.println("  " + clients[i]);
+			received += clients[i].decoder.frameCount();
+			dropped += clients[i].droppedCount();
+		}
+		System.out.println(String.format("sent %d, decoded %d, dropped %d: %.0f frames/s through the hub",
+				blaster.sent, received, dropped, received*1000.0/blaster.elapsedMs));
+		System.out.println("refused peers " + peers.refused + " of " + extra);
+		System.out.println("clients left in the mix: " + hub.clientCount());
+		System.out.println("decode to hand-off: " + trace.summary());
+		System.out.println("output " + render.getBufferControl());
+		System.out.println("simulated device underruns " + sink.underrunCount());
+	}
+
+	/**
+	 * The flute side of the links: keeps the ones that came up and counts those the
+	 * hub closed on us.
+	 */
+	static class Peers implements Transport.Listener {
+		final CopyOnWriteArrayList<Transport.Connection> links = new CopyOnWriteArrayList<Transport.Connection>();
+		volatile int refused = 0;
+
+		public boolean onConnected(Transport.Connection c){
+			links.add(c);
+			return true;
+		}
+
+		public void onData(Transport.Connection c, byte[] b, int off, int len){
+			// the hub's hello
+		}
+
+		public void onDisconnected(Transport.Connection c, IOException cause){
+			if(links.remove(c) && c.attachment() == null){
+				refused++; // only ever changed on the selector thread
+			}
+		}
+
+		public void onConnectFailed(String address, IOException cause){
+			System.out.println("connect to " + address + " failed: " + cause);
+		}
+	}
+
+	/**
+	 * Writes a batch of frames to every link each millisecond, alternating note-on and
+	 * note-off.
+	 */
+	static class Blaster extends Thread {
+		final Transport.Connection[] links;
+		final int perMs;
+		final long runMs;
+		long sent = 0;
+		long elapsedMs = 0;
+
+		Blaster(Transport.Connection[] links, int rate, long runMs){
+			super("blaster");
+			this.links = links;
+			this.perMs = Math.max(1, rate/1000);
+			this.runMs = runMs;
+			for(int i=0; i<links.length; i++){
+				links[i].attach(this); // playing, as opposed to turned away
+			}
+		}
+
+		public void run(){
+			FrameEncoder[] enc = new FrameEncoder[links.length];
+			for(int i=0; i<links.length; i++){
+				enc[i] = new FrameEncoder();
+			}
+			byte[] b = new byte[perMs*FrameDecoder.V2_BYTES];
+			long start = System.nanoTime();
+			for(long ms=0; ms<runMs; ms++){
+				LockSupport.parkNanos(start + ms*1000000L - System.nanoTime());
+				for(int i=0; i<links.length; i++){
+					int n = 0;
+					for(int f=0; f<perMs; f++){
+						int mask = (f & 1) == 0 ? 0x80 | (36 + (i*5 + f) % 24) : 0;
+						n += enc[i].encode(mask, ms, b, n);
+					}
+					try {
+						links[i].write(b);
+						sent += perMs;
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}
+			elapsedMs = (System.nanoTime() - start)/1000000;
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package com.tassile.synthflute;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+
+/**
+ * Runs the synth on a desktop: reads flute frames (v1 or v2) from a file or device,
+ * e.g. /dev/rfcomm0, or from stdin, and plays them through the sound card or into a
+ * WAV file. Same input/render thread split as ConnectedThread.
+ *
+ * With -listen it is a hub instead: flutes and controllers connect over TCP on that
+ * port, each plays its own voice group with the settings given, and all of them are
+ * mixed into the one output until stdin ends.
+ *
+ *   java com.tassile.synthflute.DesktopSynth [-poly voices [-threads n]] [-osc sine|table|dds|saw|square|triangle|flute]
+ *        [-latency low|balanced|power] [-tuning equal|just|meantone|file] [-ref hz]
+ *        [-transpose n] [-bank dir [-budget mb]] [-lowpass hz] [-delay ms] [-reverb wet] [-gain db]
+ *        [-wav out.wav | -null] [-listen port | input | -]
+ *
+ * -null plays into a simulated device with the same buffering as the sound card
+ * would get, so underrun handling can be tried without one. At the end the time
+ * spent per block in the voices and in each node is printed.
+ */
+public class DesktopSynth {
+	static final int SR = 44100;
+	static final int MIN_BUFFER_FRAMES = 512; // javax.sound has no minimum to ask for, this is typical
+
+	public static void main(String[] args) throws Exception {
+		int voices = 0;
+		int threads = 1;
+		String oscName = "dds";
+		String wav = null;
+		boolean nullSink = false;
+		String input = "-";
+		int mode = LatencyConfig.MODE_LOW_LATENCY;
+		String tuningName = "equal";
+		double ref = SynthEngine.A;
+		int transpose = 0;
+		String bankDir = null;
+		long budget = SampleBank.DEFAULT_BUDGET;
+		int delayMs = 0;
+		float reverb = 0f;
+		float lowpassHz = 0f;
+		float gainDb = 0f;
+		int listen = -1;
+		for(int i=0; i<args.length; i++){
+			String a = args[i];
+			if(a.equals("-poly")){
+				voices = Integer.parseInt(args[++i]);
+			} else if(a.equals("-threads")){
+				threads = Integer.parseInt(args[++i]);
+			} else if(a.equals("-osc")){
+				oscName = args[++i];
+			} else if(a.equals("-wav")){
+				wav = args[++i];
+			} else if(a.equals("-latency")){
+				mode = latencyMode(args[++i]);
+			} else if(a.equals("-tuning")){
+				tuningName = args[++i];
+			} else if(a.equals("-ref")){
+				ref = Double.parseDouble(args[++i]);
+			} else if(a.equals("-transpose")){
+				transpose = Integer.parseInt(args[++i]);
+			} else if(a.equals("-bank")){
+				bankDir = args[++i];
+			} else if(a.equals("-budget")){
+				budget = Long.parseLong(args[++i]) << 20;
+			} else if(a.equals("-delay")){
+				delayMs = Integer.parseInt(args[++i]);
+			} else if(a.equals("-reverb")){
+				reverb = Float.parseFloat(args[++i]);
+			} else if(a.equals("-lowpass")){
+				lowpassHz = Float.parseFloat(args[++i]);
+			} else if(a.equals("-gain")){
+				gainDb = Float.parseFloat(args[++i]);
+			} else if(a.equals("-listen")){
+				listen = Integer.parseInt(args[++i]);
+			} else if(a.equals("-null")){
+				nullSink = true;
+			} else {
+				input = a;
+			}
+		}
+
+		SampleBank bank = null;
+		if(bankDir != null){
+			bank = SampleBank.open(new File(bankDir), budget);
+			bank.start();
+			oscName = "sample";
+		}
+		final SampleBank sampleBank = bank;
+		final int oscType = OfflineRender.oscType(oscName);
+		final Tuning tuning = OfflineRender.tuning(tuningName, Tuning.TONIC_C).withReference(ref).withTranspose(transpose);
+		final int poly = voices;
+		final int renderThreads = threads;
+		HubServer.EngineFactory engines = new HubServer.EngineFactory(){
+			public SynthEngine newEngine(){
+				SynthEngine engine = new SynthEngine(SR);
+				if(sampleBank != null){
+					engine.setSampleBank(sampleBank);
+				}
+				engine.setOscillatorType(oscType);
+				engine.setTuning(tuning);
+				if(poly > 0){
+					engine.setPolyphonic(poly);
+					engine.setRenderThreads(renderThreads);
+				}
+				return engine;
+			}
+		};
+		DspGraph graph = OfflineRenderer.graph(SR, lowpassHz, delayMs, reverb, gainDb);
+		LatencyConfig latency = LatencyConfig.choose(mode, SR, MIN_BUFFER_FRAMES);
+		System.out.println("latency " + latency);
+		AudioSink sink;
+		if(wav != null){
+			sink = new WavFileSink(new File(wav), SR);
+		} else if(nullSink){
+			sink = new NullSink(SR, latency.maxBufferFrames());
+		} else {
+			sink = new JavaSoundSink(SR, latency.maxBufferFrames());
+		}
+
+		if(listen >= 0){
+			serve(listen, engines, graph, latency, sink);
+		} else {
+			play(input, engines.newEngine(), graph, latency, sink);
+		}
+		if(bank != null){
+			System.out.println(bank);
+			bank.close();
+		}
+		if(sink instanceof NullSink){
+			System.out.println("simulated device underruns " + ((NullSink) sink).underrunCount());
+		}
+	}
+
+	/**
+	 * One flute, from a file, device or stdin.
+	 */
+	static void play(String input, SynthEngine engine, DspGraph graph, LatencyConfig latency, AudioSink sink)
+			throws IOException, InterruptedException {
+		engine.setGraph(graph);
+		VoiceWorkers workers = engine.getWorkers(); // the render thread stops them, keep the counts
+
+		final EventQueue queue = new EventQueue(256);
+		RenderThread render = new RenderThread(engine, queue, sink, latency);
+		render.setTracing(true);
+		render.start();
+
+		FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Listener(){
+			public void onKeys(int mask){
+				queue.offer(mask, System.nanoTime());
+			}
+		});
+		InputStream in = input.equals("-") ? System.in : new FileInputStream(input);
+		try {
+			while(decoder.read(in) >= 0){
+			}
+		} catch (IOException e) {
+			System.err.println("input: " + e);
+		} finally {
+			in.close();
+		}
+
+		// let the last notes ring out
+		Thread.sleep(500);
+		render.halt();
+		render.join();
+		if(render.getError() != null){
+			System.err.println("output: " + render.getError());
+		}
+		System.out.println("frames " + decoder.frameCount() + " malformed " + decoder.malformedCount()
+				+ " lost " + decoder.droppedCount());
+		System.out.println("input to output latency: " + render.getLatency().summary());
+		if(render.getBufferControl() != null){
+			System.out.println("output " + render.getBufferControl());
+		}
+		System.out.println("dsp time per block\n" + engine.getGraph().summary(SR));
+		if(workers != null){
+			System.out.println("voice workers: " + workers);
+		}
+	}
+
+	/**
+	 * A hub on a TCP port, one selector thread for every peer, until stdin ends.
+	 */
+	static void serve(int port, HubServer.EngineFactory engines, DspGraph graph, LatencyConfig latency, AudioSink sink)
+			throws IOException, InterruptedException {
+		Hub hub = new Hub(SR, latency.blockFrames);
+		hub.setGraph(graph);
+		hub.setLatencyHistogram(new LatencyHistogram());
+		RenderThread render = new RenderThread(hub, sink, latency.bufferFrames);
+		render.start();
+
+		NioTransport transport = new NioTransport(new InetSocketAddress(port));
+		HubServer server = new HubServer(hub, engines);
+		transport.listen(server);
+		System.out.println("listening on port " + transport.localPort() + ", end stdin to stop");
+		while(System.in.read() >= 0){
+		}
+		Hub.Client[] clients = hub.clients();
+		transport.close();
+
+		// let the last notes ring out
+		Thread.sleep(500);
+		render.halt();
+		render.join();
+		if(render.getError() != null){
+			System.err.println("output: " + render.getError());
+		}
+		for(int i=0; i<clients.length; i++){
+			System.out.println(clients[i]);
+		}
+		System.out.println("input to output latency: " + hub.getLatencyHistogram().summary());
+		if(render.getBufferControl() != null){
+			System.out.println("output " + render.getBufferControl());
+		}
+		System.out.println("dsp time per block\n" + hub.getGraph().summary(SR));
+	}
+
+	static int latencyMode(String name){
+		if(name.equals("low")){
+			return LatencyConfig.MODE_LOW_LATENCY;
+		} else if(name.equals("balanced")){
+			return LatencyConfig.MODE_BALANCED;
+		} else if(name.equals("power")){
+			return LatencyConfig.MODE_POWER_SAVING;
+		}
+		throw new IllegalArgumentException("unknown latency mode " + name);
+	}
+}
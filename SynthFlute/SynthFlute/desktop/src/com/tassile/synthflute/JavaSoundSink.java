@@ -0,0 +1,75 @@
+package com.tassile.synthflute;
+
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * AudioSink on a javax.sound.sampled SourceDataLine, for running the synth on a
+ * desktop. Like AudioTrack, write() blocks until the line has room.
+ */
+class JavaSoundSink implements AudioSink {
+	private final int sr;
+	private final int bufferFrames;
+	private SourceDataLine line;
+	private byte[] bytes = new byte[0];
+
+	/**
+	 * @param bufferFrames  size of the line's buffer, 0 for the mixer's default
+	 */
+	JavaSoundSink(int sr, int bufferFrames){
+		this.sr = sr;
+		this.bufferFrames = bufferFrames;
+	}
+
+	public int sampleRate(){
+		return sr;
+	}
+
+	public void start() throws IOException {
+		AudioFormat format = new AudioFormat(sr, 16, 1, true, false);
+		try {
+			line = AudioSystem.getSourceDataLine(format);
+			if(bufferFrames > 0){
+				line.open(format, bufferFrames*2);
+			} else {
+				line.open(format);
+			}
+		} catch (LineUnavailableException e) {
+			throw new IOException("no audio line for " + format, e);
+		}
+		line.start();
+	}
+
+	public int write(short[] buf, int off, int len){
+		byte[] b = bytes;
+		if(b.length < len*2){
+			b = bytes = new byte[len*2];
+		}
+		for(int i=0; i<len; i++){
+			short s = buf[off+i];
+			b[2*i] = (byte) s;
+			b[2*i+1] = (byte) (s >> 8);
+		}
+		line.write(b, 0, len*2);
+		return len;
+	}
+
+	public int bufferFrames(){
+		return line.getBufferSize() / 2;
+	}
+
+	public long framesPlayed(){
+		return line.getLongFramePosition();
+	}
+
+	public void close(){
+		if(line != null){
+			line.drain();
+			line.close();
+		}
+	}
+}
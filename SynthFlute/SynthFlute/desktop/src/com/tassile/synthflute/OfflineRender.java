@@ -0,0 +1,194 @@
+package com.tassile.synthflute;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Command line front end for OfflineRenderer.
+ *
+ *   java com.tassile.synthflute.OfflineRender [options] session.txt out.wav
+ *   java com.tassile.synthflute.OfflineRender [options] sessions/ out/
+ *
+ * Sessions are either KeyEventLog text files (*.txt) or SessionRecorder captures
+ * (*.sfrec), which are run through the frame decoder first. With a directory, every
+ * session in it is rendered to out/<name>.wav, spread over a fixed pool of threads
+ * (one per core unless -j says otherwise).
+ *
+ * Options: -sr 44100, -osc sine|table|dds|saw|square|triangle|flute, -poly <voices>, -tail <ms>, -j <threads>,
+ * and the tuning (see Tuning): -tuning equal|just|meantone|<cents file>, -ref <Hz for A>,
+ * -tonic <pitch class, A = 0>, -transpose <semitones>, and -bank <dir> to play
+ * recorded samples (see SampleBank) within -budget <MB>. Effects, in this order:
+ * -lowpass <cutoff Hz>, -delay <ms>, -reverb <wet level, e.g. 0.3>, -gain <dB>
+ */
+public class OfflineRender {
+	public static void main(String[] args) throws Exception {
+		int sr = 44100;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String oscName = "dds";
+		int voices = 0;
+		long tailMs = 500;
+		String tuningName = "equal";
+		int tonic = Tuning.TONIC_C;
+		double ref = SynthEngine.A;
+		int transpose = 0;
+		String bankDir = null;
+		long budget = SampleBank.DEFAULT_BUDGET;
+		int delayMs = 0;
+		float reverb = 0f;
+		float lowpassHz = 0f;
+		float gainDb = 0f;
+		List<String> files = new ArrayList<String>();
+		for(int i=0; i<args.length; i++){
+			String a = args[i];
+			if(a.equals("-sr")){
+				sr = Integer.parseInt(args[++i]);
+			} else if(a.equals("-osc")){
+				oscName = args[++i];
+			} else if(a.equals("-poly")){
+				voices = Integer.parseInt(args[++i]);
+			} else if(a.equals("-tail")){
+				tailMs = Long.parseLong(args[++i]);
+			} else if(a.equals("-j")){
+				threads = Integer.parseInt(args[++i]);
+			} else if(a.equals("-tuning")){
+				tuningName = args[++i];
+			} else if(a.equals("-tonic")){
+				tonic = Integer.parseInt(args[++i]);
+			} else if(a.equals("-ref")){
+				ref = Double.parseDouble(args[++i]);
+			} else if(a.equals("-transpose")){
+				transpose = Integer.parseInt(args[++i]);
+			} else if(a.equals("-bank")){
+				bankDir = args[++i];
+			} else if(a.equals("-budget")){
+				budget = Long.parseLong(args[++i]) << 20;
+			} else if(a.equals("-delay")){
+				delayMs = Integer.parseInt(args[++i]);
+			} else if(a.equals("-reverb")){
+				reverb = Float.parseFloat(args[++i]);
+			} else if(a.equals("-lowpass")){
+				lowpassHz = Float.parseFloat(args[++i]);
+			} else if(a.equals("-gain")){
+				gainDb = Float.parseFloat(args[++i]);
+			} else {
+				files.add(a);
+			}
+		}
+		if(files.size() != 2){
+			System.err.println("usage: OfflineRender [-sr hz] [-osc sine|table|dds|saw|square|triangle|flute] [-poly voices] [-tail ms] [-j threads]"
+					+ " [-tuning equal|just|meantone|file] [-ref hz] [-tonic n] [-transpose n] [-bank dir] [-budget mb] [-lowpass hz] [-delay ms] [-reverb wet] [-gain db]"
+					+ " <in.txt|in.sfrec|dir> <out.wav|dir>");
+			System.exit(2);
+		}
+
+		final OfflineRenderer renderer = new OfflineRenderer(sr);
+		renderer.oscType = oscType(oscName);
+		renderer.voices = voices;
+		renderer.tailMs = tailMs;
+		renderer.delayMs = delayMs;
+		renderer.reverb = reverb;
+		renderer.lowpassHz = lowpassHz;
+		renderer.gainDb = gainDb;
+		renderer.tuning = tuning(tuningName, tonic).withReference(ref).withTranspose(transpose);
+		if(bankDir != null){
+			renderer.bank = SampleBank.open(new File(bankDir), budget);
+			renderer.oscType = SynthEngine.OSC_SAMPLE;
+		}
+
+		File in = new File(files.get(0));
+		File out = new File(files.get(1));
+		List<File[]> jobs = new ArrayList<File[]>();
+		if(in.isDirectory()){
+			if(!out.isDirectory() && !out.mkdirs()){
+				throw new IOException("can't create " + out);
+			}
+			File[] list = in.listFiles();
+			for(int i=0; list != null && i<list.length; i++){
+				String name = list[i].getName();
+				int dot = name.lastIndexOf('.');
+				if(name.endsWith(".txt") || name.endsWith(".sfrec")){
+					jobs.add(new File[]{ list[i], new File(out, name.substring(0, dot) + ".wav") });
+				}
+			}
+		} else {
+			jobs.add(new File[]{ in, out });
+			threads = 1;
+		}
+
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		for(final File[] job : jobs){
+			results.add(pool.submit(new Callable<Long>(){
+				public Long call() throws IOException {
+					return renderer.render(load(job[0]), job[1]);
+				}
+			}));
+		}
+		pool.shutdown();
+
+		long frames = 0;
+		int failed = 0;
+		for(int i=0; i<jobs.size(); i++){
+			try {
+				frames += results.get(i).get();
+			} catch (ExecutionException e) {
+				failed++;
+				System.err.println(jobs.get(i)[0] + ": " + e.getCause());
+			}
+		}
+		double secs = (System.nanoTime() - start)/1e9;
+		double audio = (double) frames/sr;
+		System.out.println(String.format("%d sessions (%d failed), %.1fs of audio in %.2fs on %d threads = %.0fx realtime",
+				jobs.size(), failed, audio, secs, threads, audio/secs));
+		if(renderer.bank != null){
+			System.out.println(renderer.bank);
+		}
+		if(failed > 0){
+			System.exit(1);
+		}
+	}
+
+	static KeyEventLog load(File f) throws IOException {
+		return f.getName().endsWith(".sfrec") ? SessionReader.toLog(f) : KeyEventLog.read(f);
+	}
+
+	static Tuning tuning(String name, int tonic) throws IOException {
+		if(name.equals("equal")){
+			return Tuning.equal();
+		} else if(name.equals("just")){
+			return Tuning.just(tonic);
+		} else if(name.equals("meantone")){
+			return Tuning.meantone(tonic);
+		}
+		return Tuning.read(new File(name), tonic);
+	}
+
+	static int oscType(String name){
+		if(name.equals("sine")){
+			return SynthEngine.OSC_SINE;
+		} else if(name.equals("table")){
+			return SynthEngine.OSC_TABLE;
+		} else if(name.equals("dds")){
+			return SynthEngine.OSC_DDS;
+		} else if(name.equals("saw")){
+			return SynthEngine.OSC_SAW;
+		} else if(name.equals("square")){
+			return SynthEngine.OSC_SQUARE;
+		} else if(name.equals("triangle")){
+			return SynthEngine.OSC_TRIANGLE;
+		} else if(name.equals("flute")){
+			return SynthEngine.OSC_FLUTE;
+		} else if(name.equals("sample")){
+			return SynthEngine.OSC_SAMPLE;
+		}
+		throw new IllegalArgumentException("unknown oscillator " + name);
+	}
+}
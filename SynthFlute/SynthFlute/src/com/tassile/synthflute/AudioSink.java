@@ -0,0 +1,38 @@
+package com.tassile.synthflute;
+
+import java.io.IOException;
+
+/**
+ * Where rendered 16-bit mono samples go: the AudioTrack on a phone, a sound card on a
+ * desktop, a file, or nowhere. Real-time sinks block in write() until the hardware
+ * has room, which is what paces the render loop.
+ */
+interface AudioSink {
+	int sampleRate();
+
+	void start() throws IOException;
+
+	/**
+	 * Writes len samples from buf, blocking until all were accepted.
+	 * @return the number of samples written
+	 */
+	int write(short[] buf, int off, int len) throws IOException;
+
+	/**
+	 * @return how many frames the sink can hold ahead of playback, 0 if it doesn't
+	 *         queue anything (a file, or a sink that plays everything as it's written)
+	 */
+	int bufferFrames();
+
+	/**
+	 * Where playback has got to, for telling how much audio is still queued. Only
+	 * meaningful after start().
+	 * @return frames played since start(), or -1 if the sink has no playback clock
+	 */
+	long framesPlayed();
+
+	/**
+	 * Stops output and frees whatever the sink holds. The sink can't be used again.
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,94 @@
+package com.tassile.synthflute;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.util.Log;
+
+/**
+ * AudioSink on an android.media.AudioTrack in MODE_STREAM. Sizes are in frames;
+ * AudioTrack itself wants bytes, which for 16-bit mono is two per frame.
+ */
+class AudioTrackSink implements AudioSink {
+	private static final String TAG = "AudioTrackSink";
+
+	static final int BYTES_PER_FRAME = 2;
+
+	private final int sr;
+	private final int bufferFrames;
+	private final AudioTrack audioTrack;
+	private long played = 0; // head position, extended past the 32 bits AudioTrack gives
+
+	AudioTrackSink(int sr){
+		this(sr, minBufferFrames(sr));
+	}
+
+	/**
+	 * Allocates room for the largest buffer the config may grow to; how much of it is
+	 * used is up to RenderThread. The track won't start until all of it has been
+	 * written once, see BufferController.
+	 */
+	AudioTrackSink(LatencyConfig config){
+		this(config.sr, config.maxBufferFrames());
+	}
+
+	AudioTrackSink(int sr, int bufferFrames){
+		this.sr = sr;
+		this.bufferFrames = bufferFrames;
+		Log.d(TAG, "buffer: " + bufferFrames + " frames");
+
+		audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC,
+				sr, AudioFormat.CHANNEL_OUT_MONO,
+				AudioFormat.ENCODING_PCM_16BIT, bufferFrames*BYTES_PER_FRAME,
+				AudioTrack.MODE_STREAM);
+	}
+
+	/**
+	 * The smallest buffer the device takes, in frames. getMinBufferSize() answers in
+	 * bytes.
+	 */
+	static int minBufferFrames(int sr){
+		int bytes = AudioTrack.getMinBufferSize(sr, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+		if(bytes <= 0){
+			// ERROR or ERROR_BAD_VALUE, guess something safe: 100 ms
+			Log.w(TAG, "getMinBufferSize: " + bytes);
+			return sr / 10;
+		}
+		return bytes / BYTES_PER_FRAME;
+	}
+
+	/**
+	 * Picks buffer and block sizes for a LatencyConfig mode on this device.
+	 */
+	static LatencyConfig configure(int mode, int sr){
+		return LatencyConfig.choose(mode, sr, minBufferFrames(sr));
+	}
+
+	public int bufferFrames(){
+		return bufferFrames;
+	}
+
+	public long framesPlayed(){
+		// the head is an unsigned 32-bit count that wraps after ~27 hours at 44.1k
+		int head = audioTrack.getPlaybackHeadPosition();
+		played += (head - (int) played) & 0xFFFFFFFFL;
+		return played;
+	}
+
+	public int sampleRate(){
+		return sr;
+	}
+
+	public void start(){
+		audioTrack.play();
+	}
+
+	public int write(short[] buf, int off, int len){
+		return audioTrack.write(buf, off, len);
+	}
+
+	public void close(){
+		audioTrack.stop();
+		audioTrack.release();
+	}
+}
@@ -16,30 +16,29 @@
 
 package com.tassile.synthflute;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Stack;
 import java.util.UUID;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
 /**
- * This class does all the work for setting up and managing Bluetooth
- * connections with other devices. It has a thread that listens for
- * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * This class does all the work for setting up and managing connections
+ * with flutes. The links come from a Transport, RFCOMM unless
+ * setTransport() says otherwise, which listens for incoming connections,
+ * connects to a device when asked and reads every link on its own threads.
+ *
+ * One flute plays at a time through its own engine and output (see
+ * FluteServer). In hub mode (setHubMode()) every flute that connects gets
+ * its own voice group in one output mixed by a Hub instead (see HubServer).
+ * Either way the transport's threads only post to the UI thread, so they
+ * never wait on this service's lock.
  */
 public class BTService {
     // Debugging
@@ -49,10 +48,6 @@ public class BTService {
     // Name for the SDP record when creating server socket
     private static final String NAME_SECURE = "BluetoothChatSecure";
     private static final String NAME_INSECURE = "BluetoothChatInsecure";
-    
-    //buffer delimiter
-    private static final char BUFFER_DELIMITER = (char) 32;  // 10 = ASCII newline. 32 = ASCII space
-    private static final char BUFFER_BEGINLIMITER  = (char) 33; // ! = ascii 33
 
     // Unique UUID for this application
     private static final UUID MY_UUID_SECURE =
@@ -65,10 +60,22 @@ public class BTService {
     // Member fields
     private final BluetoothAdapter mAdapter;
     private final Handler mHandler;
-    private AcceptThread mSecureAcceptThread;
-    private AcceptThread mInsecureAcceptThread;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
+    private final File mRecordDir;
+    private volatile boolean mRecording = false;
+    private volatile int mLatencyMode = LatencyConfig.MODE_LOW_LATENCY;
+    private volatile Tuning mTuning = Tuning.DEFAULT;
+    private volatile SampleBank mSampleBank;
+    private volatile int mOscType = SynthEngine.OSC_DDS;
+    private volatile int mRenderThreads = 1;
+    private volatile boolean mHubMode = false;
+    private volatile boolean mTraceLatency = false; // input to AudioTrack.write histogram
+    private volatile Transport mTransport; // null for RFCOMM
+    private Transport mLink; // what flutes connect over, while started
+    private FluteServer mFluteServer; // plays the one flute, unless in hub mode
+    private HubServer mHubServer;
+    private Hub mHub; // hub mode: the mix every flute plays into
+    private RenderThread mHubRenderThread;
+    private volatile DspNode[] mEffects = new DspNode[0];
     private int mState;
 
     // Constants that indicate the current connection state
@@ -77,22 +84,9 @@ public class BTService {
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 3;  // now connected to a remote device
 
-	//public Handler mHandler;
-	int sr = 44100;
-	boolean isRunning = true;
-	int sliderval = 100;
-	int buffsize = 0;
-	AudioTrack audioTrack; // = null;
-	//private static final String TAG = "BluetoothChat";
-	
-	public boolean[] keyArr = new boolean[12]; // holds currently pressed keys
-	private Stack<Short> sampleStack = new Stack<Short>(); // makes for a loop 
-	private double[] notes = new double[96]; //because (7*12)+11+1 (the +1 is zero'th position)
-    
-    
-    
-    
-    
+    // Audio settings for the connected flute
+    private static final int SAMPLE_RATE = 44100;
+
     /**
      * Constructor. Prepares a new BluetoothChat session.
      * @param context  The UI Activity Context
@@ -102,6 +96,7 @@ public class BTService {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mState = STATE_NONE;
         mHandler = handler;
+        mRecordDir = context.getFilesDir();
     }
 
     /**
@@ -123,647 +118,565 @@ public class BTService {
     }
 
     /**
-     * Start the chat service. Specifically start AcceptThread to begin a
-     * session in listening (server) mode. Called by the Activity onResume() */
+     * Start the chat service. Specifically drop any flute still playing and
+     * listen on the transport for the next. Called by the Activity onResume() */
     public synchronized void start() {
         if (D) Log.d(TAG, "start");
 
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
-
-        setState(STATE_LISTEN);
-
-        // Start the thread to listen on a BluetoothServerSocket
-        if (mSecureAcceptThread == null) {
-            mSecureAcceptThread = new AcceptThread(true);
-            mSecureAcceptThread.start();
-        }
-        if (mInsecureAcceptThread == null) {
-            mInsecureAcceptThread = new AcceptThread(false);
-            mInsecureAcceptThread.start();
+        // Hub mode keeps its mix going
+        if (mHubMode) {
+            stopFlute();
+            startHub();
+            return;
         }
+        stopHub();
+        stopFlute();
+        startFlute();
     }
 
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
+     * Connect to a remote device over RFCOMM. It is reported like an
+     * incoming flute once the link is up.
      * @param device  The BluetoothDevice to connect
      * @param secure Socket Security type - Secure (true) , Insecure (false)
      */
     public synchronized void connect(BluetoothDevice device, boolean secure) {
         if (D) Log.d(TAG, "connect to: " + device);
 
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
+        if (mLink == null) start();
+        if (!(mLink instanceof RfcommTransport)) {
+            Log.w(TAG, "not on Bluetooth, not connecting to " + device);
+            return;
         }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
+        // Only one flute plays; in hub mode this is one more
+        if (mFluteServer != null) mFluteServer.hangUp();
+        try {
+            ((RfcommTransport) mLink).connect(device, secure);
+        } catch (IOException e) {
+            Log.e(TAG, "connect to " + device + " failed", e);
+            connectionFailed(mFluteServer != null ? mFluteServer : mHubServer);
+            return;
+        }
+        if (mFluteServer != null) setState(STATE_CONNECTING);
+    }
 
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device, secure);
-        mConnectThread.start();
-        setState(STATE_CONNECTING);
+    /**
+     * Stop listening and drop every link
+     */
+    public synchronized void stop() {
+        if (D) Log.d(TAG, "stop");
+
+        stopFlute();
+        stopHub();
+        setState(STATE_NONE);
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
-     * @param socket  The BluetoothSocket on which the connection was made
-     * @param device  The BluetoothDevice that has been connected
+     * Write to the connected flute in an unsynchronized manner
+     * @param out The bytes to write
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
-        if (D) Log.d(TAG, "connected, Socket Type:" + socketType);
+    public void write(byte[] out) {
+        // Create temporary object
+        FluteServer.Session s;
+        HubServer hub;
+        // Synchronize a copy of the session
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return;
+            s = session();
+            hub = mHubServer;
+        }
+        // Perform the write unsynchronized; in hub mode every flute gets it
+        if (s != null) {
+            try {
+                s.connection.write(out);
 
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
+                // Share the sent message back to the UI Activity
+                mHandler.obtainMessage(SynthFlute.MESSAGE_WRITE, -1, -1, out)
+                        .sendToTarget();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during write", e);
+            }
+        }
+        if (hub != null) hub.broadcast(out);
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
+    /**
+     * Play every flute that connects at once instead of only the last one,
+     * mixed into one output. Takes effect from the next start().
+     */
+    public void setHubMode(boolean on) {
+        mHubMode = on;
+    }
 
-        // Cancel the accept thread because we only want to connect to one device
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
+    /**
+     * Record input to output latency for dumpLatency(). Off by default, it
+     * adds a histogram update per key event. Takes effect from the next connection.
+     */
+    public void setLatencyTracing(boolean on) {
+        mTraceLatency = on;
+        FluteServer server;
+        synchronized (this) {
+            server = mFluteServer;
         }
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        if (server != null) server.setTracing(on);
+    }
+
+    /**
+     * Listen on this transport instead of Bluetooth, e.g. a NioTransport on a
+     * TCP port so Wi-Fi controllers can play. null goes back to RFCOMM. Takes
+     * effect from the next start().
+     */
+    public void setTransport(Transport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Return the number of flutes playing in hub mode. */
+    public synchronized int getClientCount() {
+        return mHubServer == null ? 0 : mHubServer.connectionCount();
+    }
+
+    /**
+     * Turn recording of received bytes on or off. Takes effect from the next
+     * connection; recordings go to the app's files dir as session-<time>.sfrec
+     * and can be replayed with SessionReader.
+     */
+    public void setRecording(boolean on) {
+        mRecording = on;
+    }
+
+    /**
+     * Choose how much output buffering to use, one of the LatencyConfig modes.
+     * Takes effect from the next connection.
+     */
+    public void setLatencyMode(int mode) {
+        mLatencyMode = mode;
+    }
+
+    /**
+     * Set the reference pitch, temperament and transposition. A connected flute
+     * is retuned from the next audio block; the table is built on this thread
+     * (once per tuning, after that it comes from the cache).
+     */
+    public void setTuning(Tuning tuning) {
+        mTuning = tuning;
+        FluteServer.Session s;
+        Hub hub;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return;
+            s = session();
+            hub = mHub;
         }
+        if (hub != null) hub.setTuning(tuning);
+        if (s != null) s.engine.setTuning(tuning);
+    }
 
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
-        mConnectedThread.start();
+    /**
+     * Choose the synthesized voice, one of the SynthEngine.OSC_ types (e.g.
+     * OSC_FLUTE for the physical model). Takes effect from the next connection.
+     */
+    public void setOscillatorType(int type) {
+        mOscType = type;
+    }
 
-        // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(SynthFlute.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(SynthFlute.DEVICE_NAME, device.getName());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+    /**
+     * Render the voices on this many cores, for big chords or heavy voice
+     * types; 1 keeps everything on the audio thread. Only used when enough
+     * voices are sounding. Takes effect from the next connection.
+     */
+    public void setRenderThreads(int threads) {
+        mRenderThreads = Math.max(1, threads); // SynthEngine caps it at the cores
+    }
 
-        setState(STATE_CONNECTED);
+    /**
+     * Play recorded samples instead of a synthesized tone, from the next
+     * connection on. The caller opens the bank (within its memory budget) and
+     * starts its streamer; null goes back to the synthesizer.
+     */
+    public void setSampleBank(SampleBank bank) {
+        mSampleBank = bank;
     }
 
     /**
-     * Stop all threads
+     * Set the nodes run on the output (Filter, Delay, Reverb, Gain), in order. A connected
+     * flute gets them from the next audio block.
      */
-    public synchronized void stop() {
-        if (D) Log.d(TAG, "stop");
+    public void setEffects(DspNode... effects) {
+        mEffects = effects.clone();
+        FluteServer.Session s;
+        Hub hub;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return;
+            s = session();
+            hub = mHub;
+        }
+        if (hub != null) hub.setEffects(effects);
+        if (s != null) s.engine.setEffects(effects);
+    }
+
+    /**
+     * Log the input-to-audio latency histogram, the output buffer state and the
+     * DSP time per block of the current connection.
+     */
+    public void dumpLatency() {
+        FluteServer.Session s;
+        Hub hub;
+        RenderThread rt;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return;
+            s = session();
+            hub = mHub;
+            rt = s != null ? s.renderThread : mHubRenderThread;
+        }
+        LatencyHistogram h = rt == null ? null : rt.getLatency();
+        if (h != null) Log.i(TAG, "input to write latency: " + h.summary());
+        BufferController c = rt == null ? null : rt.getBufferControl();
+        if (c != null) Log.i(TAG, "output " + c);
+        if (hub != null) {
+            Log.i(TAG, "hub " + hub);
+            Log.i(TAG, "dsp time per block\n" + hub.getGraph().summary(SAMPLE_RATE));
+        }
+        if (s == null) return;
+        SynthEngine engine = s.engine;
+        Log.i(TAG, "dsp time per block\n" + engine.getGraph().summary(SAMPLE_RATE));
+        VoiceWorkers w = engine.getWorkers();
+        if (w != null) Log.i(TAG, "voice workers: " + w);
+    }
+
+    /**
+     * Return the output buffer currently kept filled, in frames, or -1 if
+     * not connected. It grows after underruns and shrinks back once stable. */
+    public int getOutputBufferFrames() {
+        BufferController c = bufferControl();
+        return c == null ? -1 : c.targetFrames();
+    }
+
+    /**
+     * Return the number of output underruns (audible glitches) on the current
+     * connection, or -1 if not connected. */
+    public long getUnderrunCount() {
+        BufferController c = bufferControl();
+        return c == null ? -1 : c.underrunCount();
+    }
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+    private BufferController bufferControl() {
+        RenderThread rt;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return null;
+            FluteServer.Session s = session();
+            rt = s != null ? s.renderThread : mHubRenderThread;
         }
+        return rt == null ? null : rt.getBufferControl();
+    }
+
+    /**
+     * Return the flute playing outside hub mode, or null. */
+    private synchronized FluteServer.Session session() {
+        return mFluteServer == null ? null : mFluteServer.session();
+    }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+    /**
+     * Build an engine with the current voice settings, for one flute.
+     */
+    private SynthEngine newEngine() {
+        SynthEngine engine = new SynthEngine(SAMPLE_RATE);
+        engine.setTuning(mTuning);
+        engine.setOscillatorType(mOscType);
+        engine.setRenderThreads(mRenderThreads);
+        SampleBank bank = mSampleBank;
+        if (bank != null) {
+            engine.setSampleBank(bank);
+            engine.setOscillatorType(SynthEngine.OSC_SAMPLE);
         }
+        return engine;
+    }
 
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
+    /**
+     * The transport to listen on: the one set, or RFCOMM.
+     */
+    private Transport newTransport() {
+        Transport t = mTransport;
+        if (t == null) {
+            t = new RfcommTransport(mAdapter, NAME_SECURE, MY_UUID_SECURE, NAME_INSECURE, MY_UUID_INSECURE);
         }
+        return t;
+    }
 
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+    /**
+     * Listen for the one flute to play. Each one that connects gets an
+     * engine and output of its own, built on the transport's thread.
+     */
+    private synchronized void startFlute() {
+        mFluteServer = new FluteListener();
+        mLink = newTransport();
+        try {
+            mLink.listen(mFluteServer);
+        } catch (IOException e) {
+            Log.e(TAG, "listen failed", e);
+            stopFlute();
+            setState(STATE_NONE);
+            return;
         }
-        setState(STATE_NONE);
+        setState(STATE_LISTEN);
+    }
+
+    private synchronized void stopFlute() {
+        if (mFluteServer == null) return;
+        mFluteServer.hangUp();
+        mLink.close();
+        mLink = null;
+        mFluteServer = null;
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
-     * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * Hub mode: start the mix and listen on the transport. The output runs for
+     * the whole session, silent while no flute is playing.
      */
-    public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+    private synchronized void startHub() {
+        if (mHubServer != null) return; // already listening
+
+        LatencyConfig latency = AudioTrackSink.configure(mLatencyMode, SAMPLE_RATE);
+        Log.i(TAG, "hub output latency " + latency);
+        mHub = new Hub(SAMPLE_RATE, latency.blockFrames);
+        mHub.setEffects(mEffects);
+        mHub.setLatencyHistogram(mTraceLatency ? new LatencyHistogram() : null);
+        mHubRenderThread = new RenderThread(mHub, new AudioTrackSink(latency), latency.bufferFrames);
+        mHubRenderThread.start();
+
+        mHubServer = new HubListener(mHub);
+        mLink = newTransport();
+        try {
+            mLink.listen(mHubServer);
+        } catch (IOException e) {
+            Log.e(TAG, "hub listen failed", e);
+            stopHub();
+            setState(STATE_NONE);
+            return;
         }
-        // Perform the write unsynchronized
-        r.write(out);
+        setState(STATE_LISTEN);
     }
 
     /**
-     * Indicate that the connection attempt failed and notify the UI Activity.
+     * On the UI thread: a flute is playing, or joined the mix in hub mode.
      */
-    private void connectionFailed() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(SynthFlute.MESSAGE_TOAST);
+    private synchronized void connected(Transport.Listener server, String name) {
+        if (server != mFluteServer && server != mHubServer) return; // stopped since
+
+        // Send the name of the connected device back to the UI Activity
+        Message msg = mHandler.obtainMessage(SynthFlute.MESSAGE_DEVICE_NAME);
         Bundle bundle = new Bundle();
-        bundle.putString(SynthFlute.TOAST, "Unable to connect device");
+        bundle.putString(SynthFlute.DEVICE_NAME, name);
         msg.setData(bundle);
         mHandler.sendMessage(msg);
 
-        // Start the service over to restart listening mode
-        BTService.this.start();
+        setState(STATE_CONNECTED);
+    }
+
+    /**
+     * Hub mode, on the UI thread: a flute's link is gone. The hub keeps
+     * listening for more.
+     */
+    private synchronized void hubDisconnected(HubServer server) {
+        if (server != mHubServer) return;
+        if (server.connectionCount() == 0 && mState == STATE_CONNECTED) setState(STATE_LISTEN);
+    }
+
+    private synchronized void stopHub() {
+        if (mHubServer != null) {
+            mLink.close();
+            mLink = null;
+            mHubServer = null;
+        }
+        if (mHubRenderThread != null) {
+            mHubRenderThread.halt();
+            LatencyHistogram h = mHub.getLatencyHistogram();
+            if (h != null) Log.i(TAG, "input to write latency: " + h.summary());
+            BufferController c = mHubRenderThread.getBufferControl();
+            if (c != null) Log.i(TAG, "output " + c);
+            Log.i(TAG, "hub " + mHub);
+            Log.i(TAG, "dsp time per block\n" + mHub.getGraph().summary(SAMPLE_RATE));
+            mHubRenderThread = null;
+            mHub = null;
+        }
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
+     * On the UI thread: indicate that the connection attempt failed and
+     * notify the UI Activity.
      */
-    private void connectionLost() {
+    private synchronized void connectionFailed(Transport.Listener server) {
+        if (server != mFluteServer && server != mHubServer) return;
+
         // Send a failure message back to the Activity
         Message msg = mHandler.obtainMessage(SynthFlute.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
-        bundle.putString(SynthFlute.TOAST, "Device connection was lost");
+        bundle.putString(SynthFlute.TOAST, "Unable to connect device");
         msg.setData(bundle);
         mHandler.sendMessage(msg);
 
-        // Start the service over to restart listening mode
-        BTService.this.start();
+        // The transport never stopped listening
+        if (mState == STATE_CONNECTING) setState(STATE_LISTEN);
     }
 
     /**
-     * This thread runs while listening for incoming connections. It behaves
-     * like a server-side client. It runs until a connection is accepted
-     * (or until cancelled).
+     * On the UI thread: the flute's link is gone. If it was lost rather than
+     * hung up here, notify the UI Activity.
      */
-    private class AcceptThread extends Thread {
-        // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
-        private String mSocketType;
+    private synchronized void connectionLost(FluteServer server, boolean lost) {
+        if (server != mFluteServer) return;
+
+        if (lost) {
+            // Send a failure message back to the Activity
+            Message msg = mHandler.obtainMessage(SynthFlute.MESSAGE_TOAST);
+            Bundle bundle = new Bundle();
+            bundle.putString(SynthFlute.TOAST, "Device connection was lost");
+            msg.setData(bundle);
+            mHandler.sendMessage(msg);
+        }
 
-        public AcceptThread(boolean secure) {
-            BluetoothServerSocket tmp = null;
-            mSocketType = secure ? "Secure":"Insecure";
+        // Back to listening, unless the next flute is already playing
+        if (server.session() == null && mState == STATE_CONNECTED) setState(STATE_LISTEN);
+    }
 
-            // Create a new listening server socket
-            try {
-                if (secure) {
-                    tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
-                        MY_UUID_SECURE);
-                } else {
-                    tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
-                            NAME_INSECURE, MY_UUID_INSECURE);
+    /**
+     * Plays the one flute on the transport, and tells the UI when it comes and
+     * goes.
+     */
+    private class FluteListener extends FluteServer {
+        FluteListener() {
+            super(new Output() {
+                public SynthEngine newEngine() {
+                    SynthEngine engine = BTService.this.newEngine();
+                    engine.setEffects(mEffects);
+                    return engine;
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
-            }
-            mmServerSocket = tmp;
-        }
 
-        public void run() {
-            if (D) Log.d(TAG, "Socket Type: " + mSocketType +
-                    "BEGIN mAcceptThread" + this);
-            setName("AcceptThread" + mSocketType);
-
-            BluetoothSocket socket = null;
-        	
-        	
-            // Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
-                try {
-                    // This is a blocking call and will only return on a
-                    // successful connection or an exception
-                    socket = mmServerSocket.accept();
-                } catch (IOException e) {
-                    Log.e(TAG, "Socket Type: " + mSocketType + "accept() failed", e);
-                    break;
+                public LatencyConfig latency() {
+                    LatencyConfig latency = AudioTrackSink.configure(mLatencyMode, SAMPLE_RATE);
+                    Log.i(TAG, "output latency " + latency);
+                    return latency;
                 }
 
-                // If a connection was accepted
-                if (socket != null) {
-                    synchronized (BTService.this) {
-                        switch (mState) {
-                        case STATE_LISTEN:
-                        case STATE_CONNECTING:
-                            // Situation normal. Start the connected thread.
-                            connected(socket, socket.getRemoteDevice(),
-                                    mSocketType);
-                            break;
-                        case STATE_NONE:
-                        case STATE_CONNECTED:
-                            // Either not ready or already connected. Terminate new socket.
-                            try {
-                                socket.close();
-                            } catch (IOException e) {
-                                Log.e(TAG, "Could not close unwanted socket", e);
-                            }
-                            break;
-                        }
-                    }
+                public AudioSink newSink(LatencyConfig latency) {
+                    return new AudioTrackSink(latency);
                 }
-            }
-            if (D) Log.i(TAG, "END mAcceptThread, socket Type: " + mSocketType);
-
+            });
+            setTracing(mTraceLatency);
         }
 
-        public void cancel() {
-            if (D) Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
+        @Override
+        SessionRecorder newRecorder(Transport.Connection c) {
+            if (!mRecording) return null;
+            File f = new File(mRecordDir, "session-" + System.currentTimeMillis() + ".sfrec");
             try {
-                mmServerSocket.close();
+                Log.i(TAG, "recording to " + f);
+                return new SessionRecorder(f);
             } catch (IOException e) {
-                Log.e(TAG, "Socket Type" + mSocketType + "close() of server failed", e);
+                Log.e(TAG, "could not start recording", e);
+                return null;
             }
         }
-    }
-
 
-    /**
-     * This thread runs while attempting to make an outgoing connection
-     * with a device. It runs straight through; the connection either
-     * succeeds or fails.
-     */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
-        private String mSocketType;
-
-        public ConnectThread(BluetoothDevice device, boolean secure) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-            mSocketType = secure ? "Secure" : "Insecure";
-
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
-            try {
-                if (secure) {
-                    tmp = device.createRfcommSocketToServiceRecord(
-                            MY_UUID_SECURE);
-                } else {
-                    tmp = device.createInsecureRfcommSocketToServiceRecord(
-                            MY_UUID_INSECURE);
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
+        @Override
+        public boolean onConnected(final Transport.Connection c) {
+            if (!super.onConnected(c)) {
+                Log.w(TAG, "already playing, refusing " + c.name());
+                return false;
             }
-            mmSocket = tmp;
-        }
-
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
-            setName("ConnectThread" + mSocketType);
-
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
-
-            // Make a connection to the BluetoothSocket
-            try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
-            } catch (IOException e) {
-                // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() " + mSocketType +
-                            " socket during connection failure", e2);
+            mHandler.post(new Runnable() {
+                public void run() {
+                    connected(FluteListener.this, c.name());
                 }
-                connectionFailed();
-                return;
-            }
+            });
+            return true;
+        }
 
-            // Reset the ConnectThread because we're done
-            synchronized (BTService.this) {
-                mConnectThread = null;
+        @Override
+        public void onDisconnected(Transport.Connection c, IOException cause) {
+            super.onDisconnected(c, cause);
+            Session s = (Session) c.attachment();
+            Log.i(TAG, "disconnected " + c.name() + (cause != null ? ": " + cause : ""));
+            FrameDecoder decoder = s.decoder;
+            Log.i(TAG, "protocol v" + decoder.version() + " frames: " + decoder.frameCount()
+                    + " malformed: " + decoder.malformedCount() + " lost on link: " + decoder.droppedCount()
+                    + " dropped: " + s.droppedCount());
+            LatencyHistogram h = s.renderThread.getLatency();
+            if (h != null) Log.i(TAG, "input to write latency: " + h.summary());
+            BufferController bc = s.renderThread.getBufferControl();
+            if (bc != null) Log.i(TAG, "output " + bc);
+            Log.i(TAG, "dsp time per block\n" + s.engine.getGraph().summary(SAMPLE_RATE));
+            if (s.recorder != null) {
+                Log.i(TAG, "recorded " + s.recorder.recordedCount() + " chunks, "
+                        + s.recorder.droppedCount() + " dropped");
+                if (s.recorderError != null) Log.e(TAG, "close() of recording failed", s.recorderError);
             }
-
-            // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
+            // Hung up here, e.g. to dial another device: not lost
+            final boolean lost = !s.hungUp;
+            mHandler.post(new Runnable() {
+                public void run() {
+                    connectionLost(FluteListener.this, lost);
+                }
+            });
         }
 
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
-            }
+        @Override
+        public void onConnectFailed(String address, IOException cause) {
+            Log.e(TAG, "connect to " + address + " failed", cause);
+            mHandler.post(new Runnable() {
+                public void run() {
+                    connectionFailed(FluteListener.this);
+                }
+            });
         }
     }
 
     /**
-     * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * Hub mode: plays the transport's links through the hub and tells the UI
+     * when flutes come and go.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
-            }
-
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+    private class HubListener extends HubServer {
+        HubListener(Hub hub) {
+            super(hub, new EngineFactory() {
+                public SynthEngine newEngine() {
+                    return BTService.this.newEngine();
+                }
+            });
         }
 
-        public void run() {
-
-    		// precompute the notes
-    		double A = 440.0; //A0 Hz
-    		int AOff = 48; //A0's offset in the array's indices
-    		
-    		//int octave = 0;
-    		//int note = 0;
-    		for(int i=0; i<notes.length; i++){
-    			notes[i] = A * Math.pow(Math.pow(2, (1.0/12.0)), i-AOff); //i-AOff
-    			Log.d(TAG, "notes["+i+"] = " + notes[i]);
-    			/*
-    			note++;
-    			if(note==12){
-    				octave++;
-    				note=0;
-    			}
-    			*/
-    		}
-    		
-    		if(notes[AOff] != A){
-    			Log.e(TAG, "Sanity check: notes[" + AOff + "] != " + A + " precomputation of notes likely failed.");
-    		}
-    			
-            // set the buffer size
-    		buffsize = AudioTrack.getMinBufferSize(sr, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
-    		Log.d(TAG, "buffsize: " + buffsize);
-    		
-    		//buffsize = 64;
-    		
-    		
-            AudioTrack audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC,
-                    sr, AudioFormat.CHANNEL_OUT_MONO,
-                    AudioFormat.ENCODING_PCM_16BIT, buffsize,
-                    AudioTrack.MODE_STREAM);
-            //audioTrack.
-            //Log.d(TAG, "after setting buffsize to 64, ")
-    		
-    		//Looper.prepare();
-    		//Looper.loop();
-    		short samples[] = new short[buffsize];
-    		int amp = 10000;
-    		double twopi = 8.*Math.atan(1.);
-    		double fr = 440.f;
-    		double ph = 0.0;
-    		
-    		// start audio
-    		audioTrack.play();
-    		/*
-    		 * One note will be played at a time, but chords might also be played. Additionally, there will likely be a
-    		 * circular ... reverb stuff going on... I suppose this could be done by calculating the gradual falloff of
-    		 * a just-finished note in advance... Record that in a stack. Additional notes will have to be included in 
-    		 * the stack, by adding the samples to what's already in the stack...
-    		 * 
-    		 * That is all to say, we may have two methods- one for single notes, one for chords, and at the end of either
-    		 * one, we will do some stack processing.
-    		 */
-    		
-    		// synthesis loop
-        	int octave = 0;
-        	int note = 0;
-        	int j = 0;
-        	//int i = 0;
-        	int offset = 0;
-        	
-        	
-        	
-        	
-        	
-        	
-        	
-        	// added smaller byte buffer, because why not? - Tas
-        	// original implementation
-            Log.i(TAG, "BEGIN mConnectedThread");
-            setPriority(Thread.MAX_PRIORITY);
-            
-            // other implmentation
-            
-            int bSize = 64; //used to be 1024 in original implementation
-            int readBufferPosition = 0;
-            byte[] readBuffer = new byte[bSize];
-            byte[] encodedBytes = new byte[bSize];
-            
-            
-            byte[] buffer = new byte[bSize];
-            byte[] smallBuffer = new byte[bSize];
-            int bytes = -1;
-            int startoffset = 0;
-            boolean beginFlag = false;
-
-            // Keep listening to the InputStream while connected
-            while (true) {
-                try {
-                	
-                	
-                    // Read from the InputStream
-                    //bytes = mmInStream.read(buffer);
-
-                	
-                    //wait until (space) NEW BUFFERING METHOD CODE CHANGE
-                    int bAvail = mmInStream.available();
-
-                    if (bAvail > 0){
-                    	byte[] packetBytes = new byte[bAvail];
-                    	mmInStream.read(packetBytes);
-                        for(int i=0; i<bAvail; i++){
-                        	byte b = packetBytes[i];
-                        	if(b == BUFFER_DELIMITER && beginFlag){
-                        		//byte[] encodedBytes = new byte[readBufferPosition];
-                        		encodedBytes = new byte[readBufferPosition];
-                        		System.arraycopy(buffer, 0, encodedBytes, 0, encodedBytes.length); //public static void arraycopy (Object src, int srcPos, Object dst, int dstPos, int length)
-                        		readBufferPosition = 0;
-                        		//mHandler.obtainMessage(SynthFlute.MESSAGE_READ, readBufferPosition, -1, readBuffer).sendToTarget();
-                                final String readMessage = new String(readBuffer).replaceAll("[\\D]", "");
-                                //Log.d(TAG, "integer to be parsed: " + readMessage);
-                                setPressedKeys(Integer.parseInt(readMessage));
-                        		beginFlag = false;
-                        	} else if (b == BUFFER_BEGINLIMITER){
-                        		beginFlag = true;
-                        		//encodedBytes = new byte[readBufferPosition];
-                        		readBuffer = new byte[bSize]; //erase!
-                        	} else {
-                            	readBuffer[readBufferPosition++] = b;
-                            }
-                        }
-                    } 
-                    
-                    
-
-        		    fr =  A; //440 + 440*sliderval; // A = A0
-        		    for(int i=0; i < buffsize; i++){
-        		    	note = 0;
-        		    	octave = 0;
-        		    	// I'm guessing we'll do this in here. 
-        		    	// check for which note is currently being played (if any) - look it up in the frequency table
-        		    	//[0-3] = note, [4-6] = octave, 7,8,9... = PLAYNOTE (could be replaced later with velocity info)
-        		    	//fr = notes[];
-
-        		    	for(j=0; j<4; j++){
-        		    		if(keyArr[j]){
-        		    			note += Math.pow(2, j);
-        		    		}
-        		    	}
-        		    	offset = 0;
-        		    	for(j=4; j<7; j++){
-        		    		if(keyArr[j]){
-        		    			octave += Math.pow(2, offset);
-        		    		}
-        		    		offset++;
-        		    	}
-        		    	//compute actual note to play, using note and octave buttons:
-        		    	fr = notes[(octave*12)+note];
-        			    samples[i] = (short) (amp*Math.sin(ph));
-        			    ph += twopi*fr/sr;
-        		    }
-        		    /*
-        		    if(note+octave > 0){
-        		    	Log.d(TAG, "note: " + note + " octave: " + octave);
-        		    	Log.d(TAG, "freq: " + fr);
-        		    }
-        	    	*/
-        		    audioTrack.write(samples, 0, buffsize);
-                    
-        		    
-        		    
-        		    
-        		    
-        		    
-        		    
-        		    
-        		    
-        		    
-        		    
-        		    
-        		    
-                	/*
-                	String message = "";
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-                    if(bytes != -1){
-                    	while((bytes==bSize)&&(buffer[bSize-1] != 0)){
-                    		message = message + new String(buffer, 0, bytes);
-                    		bytes = mmInStream.read(buffer);
-                    	}
-                    	message = message + new String(buffer, 0, bytes -1);
-                    	Log.d(TAG, message);
-                    	mHandler.obtainMessage(SynthFlute.MESSAGE_READ, 0, -1, smallBuffer).sendToTarget();
-                    	*/
-                    	/*
-	                    for(int i=0; i<buffer.length; i++){
-	                    	if(buffer[i] == BUFFER_DELIMITER && beginFlag){
-	                    		smallBuffer = new byte[i-startoffset];
-	                    		System.arraycopy(buffer, startoffset, smallBuffer, 0, i-startoffset);
-	                    		mHandler.obtainMessage(SynthFlute.MESSAGE_READ, 0, -1, smallBuffer).sendToTarget(); //mHandler.obtainMessage(SynthFlute.MESSAGE_READ, startoffset, -1, smallBuffer).sendToTarget();
-	                    		beginFlag = false;
-	                    		Log.d(TAG, "END-LIMITER HIT");
-	                    	} else if (buffer[i] == BUFFER_BEGINLIMITER){
-	                    		beginFlag = true;
-	                    		startoffset = i;
-	                    		Log.d(TAG, "BEGIN-LIMITER");
-	                    	}
-	                    	Log.d(TAG, Character.toString((char) buffer[i]));
-	                  }
-	                    */
- //                   }
-                    //mmSocket.getInputStream(); //p-sure we don't need this
-                      
-
-                	
-                	
-                	/*
-                    boolean endFlag = false;
-      
-                            // Read from the InputStream
-                            //bytes = mmInStream.read(buffer);
-
-                            //wait until (space) NEW BUFFERING METHOD CODE CHANGE
-                            int bAvail = mmInStream.available();
-
-                            if (bAvail > 0){
-                            	byte[] packetBytes = new byte[bAvail];
-                            	mmInStream.read(packetBytes);
-                                for(int i=0; i<bAvail; i++){
-                                	byte b = packetBytes[i];
-                                	if(b == BUFFER_DELIMITER && beginFlag){
-                                		//byte[] encodedBytes = new byte[readBufferPosition];
-                                		encodedBytes = new byte[readBufferPosition];
-                                		System.arraycopy(buffer, 0, encodedBytes, 0, encodedBytes.length); //public static void arraycopy (Object src, int srcPos, Object dst, int dstPos, int length)
-                                		readBufferPosition = 0;
-                                		mHandler.obtainMessage(SynthFlute.MESSAGE_READ, readBufferPosition, -1, readBuffer).sendToTarget();
-                                		beginFlag = false;
-                                	} else if (b == BUFFER_BEGINLIMITER){
-                                		beginFlag = true;
-                                		//encodedBytes = new byte[readBufferPosition];
-                                		readBuffer = new byte[bSize]; //erase!
-                                	} else {
-                                    	readBuffer[readBufferPosition++] = b;
-                                    }
-                                }
-                            } 
-                            */
-                            // Send the obtained bytes to the UI Activity
-                            //mHandler.obtainMessage(SynthFlute.MESSAGE_READ, bytes, -1, buffer).sendToTarget();
-                            //new
-                            
-                        } catch (IOException e) {
-                            Log.e(TAG, "disconnected", e);
-                    	    audioTrack.stop();
-                    	    audioTrack.release();
-                    	    
-                            connectionLost();
-                            // Start the service over to restart listening mode
-                            BTService.this.start();
-                            break;
-                        }
-                
-                    }
+        @Override
+        public boolean onConnected(final Transport.Connection c) {
+            if (!super.onConnected(c)) {
+                Log.w(TAG, "hub full, refusing " + c.name());
+                return false;
+            }
+            mHandler.post(new Runnable() {
+                public void run() {
+                    connected(HubListener.this, c.name());
+                }
+            });
+            return true;
         }
-        
-
-    	public void setPressedKeys(int touched){
-    		//use bit-shifts to convert from a number to a set of keys
-    		boolean[] tmpArr = new boolean[12];
-    		for(int i=0; i<12; i++){
-    			tmpArr[i] = (touched & ( 1 << i )) > 0;
-    		}
-    		
-    		//Log.d(TAG,"setPressedKeys received int: " + touched + " Printing array: " + Arrays.toString(tmpArr));
-    		
-    		keyArr = tmpArr;
-    	}
-    	
-
-        /**
-         * Write to the connected OutStream.
-         * @param buffer  The bytes to write
-         */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(SynthFlute.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            }
+        @Override
+        public void onDisconnected(Transport.Connection c, IOException cause) {
+            super.onDisconnected(c, cause);
+            Log.i(TAG, "hub lost " + c.name() + (cause != null ? ": " + cause : ""));
+            mHandler.post(new Runnable() {
+                public void run() {
+                    hubDisconnected(HubListener.this);
+                }
+            });
         }
 
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
+        @Override
+        public void onConnectFailed(String address, IOException cause) {
+            Log.e(TAG, "hub connect to " + address + " failed", cause);
+            mHandler.post(new Runnable() {
+                public void run() {
+                    connectionFailed(HubListener.this);
+                }
+            });
         }
     }
 }
@@ -0,0 +1,145 @@
+package com.tassile.synthflute;
+
+/**
+ * Band-limited saw, square and triangle. The naive waveforms are computed from the
+ * phase and their discontinuities smoothed with two-sample polynomial corrections
+ * (PolyBLEP for the jumps in saw and square, its integral, PolyBLAMP, for the corners
+ * of the triangle), which takes out most of the aliasing that would otherwise fold
+ * back from the upper notes.
+ *
+ * The phase is a 32-bit fixed-point cycle as in DdsOscillator, so the square's second
+ * edge is just the phase plus half a cycle, and increments come from the NoteTable.
+ * Each waveform has its own loop; the only branches inside are the two that catch the
+ * samples next to an edge, which are rarely taken.
+ */
+class BlepOscillator implements Oscillator {
+	static final int SAW = 0;
+	static final int SQUARE = 1;
+	static final int TRIANGLE = 2;
+
+	private static final float PHASE_SCALE = 1f / (1 << 24); // top 24 bits -> [0, 1)
+	private static final int HALF = 0x80000000;
+
+	private final int sr;
+	private final int waveform;
+	private int phase = 0;
+	private int inc = 0;
+	private float dt = 0f;    // increment as a fraction of a cycle
+	private float invDt = 0f;
+
+	BlepOscillator(int sr, int waveform){
+		if(waveform < SAW || waveform > TRIANGLE){
+			throw new IllegalArgumentException("unknown waveform " + waveform);
+		}
+		this.sr = sr;
+		this.waveform = waveform;
+	}
+
+	public void setFrequency(double hz){
+		setIncrement(NoteTable.increment(hz, sr));
+	}
+
+	public void setNote(NoteTable notes, int index){
+		setIncrement(notes.sr == sr ? notes.increment(index) : NoteTable.increment(notes.frequency(index), sr));
+	}
+
+	private void setIncrement(int i){
+		inc = i;
+		dt = (float) ((i & 0xFFFFFFFFL) / NoteTable.PHASE_ONE);
+		if(dt > 0.5f){
+			dt = 0.5f; // above Nyquist anyway, keep the corrections from overlapping
+		}
+		invDt = dt > 0f ? 1f/dt : 0f;
+	}
+
+	public void render(float[] buf, int off, int len, float amp){
+		switch(waveform){
+		case SAW:
+			saw(buf, off, len, amp);
+			break;
+		case SQUARE:
+			square(buf, off, len, amp);
+			break;
+		default:
+			triangle(buf, off, len, amp);
+			break;
+		}
+	}
+
+	private void saw(float[] buf, int off, int len, float amp){
+		int p = phase;
+		final int d = inc;
+		final float dt = this.dt, inv = invDt;
+		int end = off + len;
+		for(int i=off; i<end; i++){
+			float t = (p >>> 8) * PHASE_SCALE;
+			buf[i] += amp*(2f*t - 1f - blep(t, dt, inv));
+			p += d;
+		}
+		phase = p;
+	}
+
+	private void square(float[] buf, int off, int len, float amp){
+		int p = phase;
+		final int d = inc;
+		final float dt = this.dt, inv = invDt;
+		int end = off + len;
+		for(int i=off; i<end; i++){
+			float t = (p >>> 8) * PHASE_SCALE;
+			float t2 = ((p + HALF) >>> 8) * PHASE_SCALE;
+			float v = p >= 0 ? 1f : -1f; // sign bit set = second half of the cycle
+			buf[i] += amp*(v + blep(t, dt, inv) - blep(t2, dt, inv));
+			p += d;
+		}
+		phase = p;
+	}
+
+	private void triangle(float[] buf, int off, int len, float amp){
+		int p = phase;
+		final int d = inc;
+		final float dt = this.dt, inv = invDt;
+		final float corner = 8f*dt; // change of slope per sample at each corner
+		int end = off + len;
+		for(int i=off; i<end; i++){
+			float t = (p >>> 8) * PHASE_SCALE;
+			float t2 = ((p + HALF) >>> 8) * PHASE_SCALE;
+			float v = 4f*Math.abs(t - 0.5f) - 1f; // peak at t = 0, trough at 0.5
+			buf[i] += amp*(v + corner*(blamp(t2, dt, inv) - blamp(t, dt, inv)));
+			p += d;
+		}
+		phase = p;
+	}
+
+	/**
+	 * PolyBLEP residual for a step of +2 at t = 0: nonzero only within one sample of
+	 * the edge on either side.
+	 */
+	static float blep(float t, float dt, float invDt){
+		if(t < dt){
+			float x = t*invDt - 1f;
+			return -x*x;
+		} else if(t > 1f - dt){
+			float x = (t - 1f)*invDt + 1f;
+			return x*x;
+		}
+		return 0f;
+	}
+
+	/**
+	 * PolyBLAMP residual for a unit change of slope (per sample) at t = 0.
+	 */
+	static float blamp(float t, float dt, float invDt){
+		if(t < dt){
+			float x = 1f - t*invDt;
+			return x*x*x*(1f/6f);
+		} else if(t > 1f - dt){
+			float x = (t - 1f)*invDt + 1f;
+			return x*x*x*(1f/6f);
+		}
+		return 0f;
+	}
+
+	public void reset(){
+		phase = 0;
+	}
+}
@@ -0,0 +1,33 @@
+package com.tassile.synthflute;
+
+/**
+ * What RenderThread drives once per block: an EventRenderer for a single flute, or a
+ * Hub mixing several. Everything here is called on the render thread.
+ */
+interface BlockRenderer {
+	/**
+	 * Renders the next block into out[0..blockSize()).
+	 * @param now  System.nanoTime() at the start of this block
+	 */
+	void render(short[] out, long now);
+
+	/**
+	 * Call just before the block from render() is written out.
+	 * @param now  System.nanoTime()
+	 */
+	void delivered(long now);
+
+	int blockSize();
+
+	/**
+	 * @param h  where to record input-to-output latency, or null to stop tracing
+	 */
+	void setLatencyHistogram(LatencyHistogram h);
+
+	LatencyHistogram getLatencyHistogram();
+
+	/**
+	 * Called once the render thread has stopped rendering, e.g. to stop voice workers.
+	 */
+	void finish();
+}
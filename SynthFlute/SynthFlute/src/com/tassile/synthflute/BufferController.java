@@ -0,0 +1,162 @@
+package com.tassile.synthflute;
+
+/**
+ * Keeps a clocked sink (one that reports how far playback has got) filled to a
+ * target number of frames, notices when it runs dry, and moves the target.
+ *
+ * The sink's own buffer is made big enough for the largest target; the render loop
+ * then waits before each block until the queued audio has drained to the target,
+ * so the latency is set by the target rather than by the sink's capacity, and can
+ * be changed without reopening the device.
+ *
+ * Until the playback head starts moving nothing is waited for: a stream AudioTrack
+ * (before API 31) only starts playing once its whole buffer is full, so the first
+ * blocks prefill the sink to capacity and the write blocks when it is full. Once the
+ * head moves the loop waits for that prefill to drain down to the target. Waiting on
+ * a head that stays at 0 instead would grow the wait by a block every pass and hold
+ * the start back by seconds.
+ *
+ * An underrun is counted when, at the next write, either the playback head has
+ * caught up with everything written, or the time the queued audio should have
+ * lasted (worked out at the previous write) has already passed. Each underrun grows
+ * the target by half (at least one block). After a stable period the target shrinks
+ * again, one block at a time, down to where it started; a shrink that brings an
+ * underrun straight back doubles the wait before the next one. The period counts as
+ * stable while there are no underruns and no block takes longer to render than the
+ * smaller buffer would have covered.
+ *
+ * A block is late when rendering it took longer than it lasts; that can't be
+ * sustained at any buffer size, but it doesn't count as an underrun on its own.
+ *
+ * Everything but the getters is for the render thread only.
+ */
+class BufferController {
+	static final long STABLE_NANOS = 10000000000L; // 10 s without trouble before shrinking
+	static final long MAX_HOLD_NANOS = 300000000000L; // longest wait after repeated failed shrinks
+
+	private final int sr;
+	private final int block;
+	private final int minFrames;
+	private final int maxFrames;
+	private final long blockNanos;
+
+	private volatile int target;
+	private volatile long underruns = 0;
+	private volatile long lateBlocks = 0;
+	private volatile long maxRenderNanos = 0;
+
+	private long runOutAt = Long.MAX_VALUE; // when the audio queued at the last write runs out
+	private long stableSince;
+	private long hold = STABLE_NANOS;
+	private boolean shrunk = false; // last change was a shrink
+
+	/**
+	 * @param target     frames to keep queued at first, and the smallest it shrinks to
+	 * @param maxFrames  the most the sink can hold
+	 */
+	BufferController(int sr, int block, int target, int maxFrames){
+		if(target < block || maxFrames < target){
+			throw new IllegalArgumentException("target " + target + " not within block " + block + " and max " + maxFrames);
+		}
+		this.sr = sr;
+		this.block = block;
+		this.minFrames = target;
+		this.maxFrames = maxFrames;
+		this.target = target;
+		blockNanos = framesToNanos(block);
+		stableSince = System.nanoTime();
+	}
+
+	/**
+	 * How long to wait before rendering the next block so that, once written, no more
+	 * than the target is queued.
+	 */
+	long waitNanos(long written, long played){
+		if(played <= 0){
+			return 0; // not started yet, fill it
+		}
+		long excess = written - played + block - target;
+		return excess > 0 ? framesToNanos(excess) : 0;
+	}
+
+	/**
+	 * Called with a freshly rendered block, just before it is written.
+	 * @param renderNanos  how long rendering it took
+	 * @return true if the sink ran dry since the last write
+	 */
+	boolean beforeWrite(long now, long renderNanos, long written, long played){
+		if(renderNanos > maxRenderNanos){
+			maxRenderNanos = renderNanos;
+		}
+		if(renderNanos > blockNanos){
+			lateBlocks++;
+			if(renderNanos > framesToNanos(target - 2*block)){
+				// one block less and this would have run dry
+				stableSince = now;
+			}
+		}
+
+		boolean underrun = played > 0 && (played >= written || now > runOutAt);
+		if(underrun){
+			underruns++;
+			grow(now);
+		} else if(now - stableSince > hold && target > minFrames){
+			target -= block;
+			shrunk = true;
+			stableSince = now;
+		}
+		return underrun;
+	}
+
+	/**
+	 * Called after the write returns, with the head position passed to beforeWrite
+	 * (a slightly stale head only makes the run-out estimate later, never earlier).
+	 */
+	void afterWrite(long now, long written, long played){
+		runOutAt = now + framesToNanos(written - played);
+	}
+
+	private void grow(long now){
+		if(shrunk && now - stableSince < hold){
+			// the last shrink went too far, be slower about the next one
+			hold = Math.min(hold*2, MAX_HOLD_NANOS);
+		}
+		shrunk = false;
+		int step = Math.max(block, target/2);
+		int t = (target + step + block - 1) / block * block;
+		target = Math.min(t, maxFrames);
+		stableSince = now;
+	}
+
+	private long framesToNanos(long frames){
+		return frames*1000000000L/sr;
+	}
+
+	/** Frames currently kept queued in the sink. */
+	int targetFrames(){
+		return target;
+	}
+
+	long underrunCount(){
+		return underruns;
+	}
+
+	long lateBlockCount(){
+		return lateBlocks;
+	}
+
+	double targetMs(){
+		return target * 1000.0 / sr;
+	}
+
+	/** Longest time one block has taken to render, as a fraction of its duration. */
+	double peakLoad(){
+		return (double) maxRenderNanos / blockNanos;
+	}
+
+	public String toString(){
+		return "buffer " + target + " frames (" + String.format("%.1f", targetMs()) + " ms), "
+				+ underruns + " underruns, " + lateBlocks + " late blocks, peak load "
+				+ String.format("%.0f%%", peakLoad()*100);
+	}
+}
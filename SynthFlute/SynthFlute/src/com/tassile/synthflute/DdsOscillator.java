@@ -0,0 +1,66 @@
+package com.tassile.synthflute;
+
+/**
+ * Fixed-point wavetable oscillator (direct digital synthesis). The phase is a 32-bit
+ * int where 2^32 is one cycle: adding the increment lets it overflow, which is the
+ * wrap, and the top TABLE_BITS pick the table entry while the bits below give the
+ * interpolation fraction.
+ *
+ * Compared to TableOscillator there is no double arithmetic in the loop and no wrap
+ * test, and the phase resolution stays the same however long a note is held. The
+ * increment normally comes straight from the NoteTable, precomputed for the sample
+ * rate, so starting a note costs nothing either.
+ */
+class DdsOscillator implements Oscillator {
+	static final int FRAC_BITS = 32 - TableOscillator.TABLE_BITS;
+	private static final int FRAC_MASK = (1 << FRAC_BITS) - 1;
+	private static final float FRAC_SCALE = 1f / (1 << FRAC_BITS);
+
+	private final int sr;
+	private final float[] table;
+	private int phase = 0;
+	private int inc = 0;
+
+	DdsOscillator(int sr){
+		this(sr, TableOscillator.SINE);
+	}
+
+	/**
+	 * @param table  TableOscillator.TABLE_SIZE+1 samples of one cycle, the last equal
+	 *               to the first
+	 */
+	DdsOscillator(int sr, float[] table){
+		if(table.length != TableOscillator.TABLE_SIZE + 1){
+			throw new IllegalArgumentException("wavetable must have " + (TableOscillator.TABLE_SIZE + 1) + " entries");
+		}
+		this.sr = sr;
+		this.table = table;
+	}
+
+	public void setFrequency(double hz){
+		inc = NoteTable.increment(hz, sr);
+	}
+
+	public void setNote(NoteTable notes, int index){
+		inc = notes.sr == sr ? notes.increment(index) : NoteTable.increment(notes.frequency(index), sr);
+	}
+
+	public void render(float[] buf, int off, int len, float amp){
+		final float[] t = table;
+		int p = phase;
+		int d = inc;
+		int end = off + len;
+		for(int i=off; i<end; i++){
+			int idx = p >>> FRAC_BITS;
+			float frac = (p & FRAC_MASK) * FRAC_SCALE;
+			float a = t[idx];
+			buf[i] += amp*(a + frac*(t[idx+1] - a));
+			p += d;
+		}
+		phase = p;
+	}
+
+	public void reset(){
+		phase = 0;
+	}
+}
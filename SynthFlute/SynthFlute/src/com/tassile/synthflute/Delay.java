@@ -0,0 +1,83 @@
+package com.tassile.synthflute;
+
+/**
+ * Feedback delay (echo) on a float ring buffer. The length is rounded up to a power
+ * of two so reads and writes wrap with a mask. A one-pole lowpass in the feedback
+ * path makes each repeat a little duller than the last, as a real room would.
+ */
+class Delay implements DspNode {
+	private final int sr;
+	private final float[] ring;
+	private final int mask;
+	private int write = 0;
+	private float damped = 0f; // lowpass state in the feedback path
+
+	private volatile int delay;          // samples
+	private volatile float feedback = 0.4f; // 0..<1, how much of each repeat comes back
+	private volatile float damping = 0.3f;  // 0 = bright, towards 1 = dark
+	private volatile float wet = 0.3f;
+	private volatile float dry = 1f;
+
+	/**
+	 * @param maxMs  the longest delay setTime() will take
+	 */
+	Delay(int sr, int maxMs){
+		this.sr = sr;
+		int need = (int) ((long) sr*maxMs/1000) + 1;
+		int size = Integer.highestOneBit(need);
+		if(size < need){
+			size <<= 1;
+		}
+		ring = new float[size];
+		mask = size - 1;
+		delay = need - 1;
+	}
+
+	void setTime(int ms){
+		int d = (int) ((long) sr*ms/1000);
+		if(d < 1 || d > mask){
+			throw new IllegalArgumentException("delay " + ms + " ms out of range");
+		}
+		delay = d;
+	}
+
+	void setFeedback(float f){
+		feedback = Math.max(0f, Math.min(f, 0.98f));
+	}
+
+	void setDamping(float d){
+		damping = Math.max(0f, Math.min(d, 0.99f));
+	}
+
+	void setMix(float wet, float dry){
+		this.wet = wet;
+		this.dry = dry;
+	}
+
+	public void process(float[] buf, int off, int len){
+		final float[] r = ring;
+		final int m = mask;
+		final int d = delay;
+		final float fb = feedback, damp = damping, w = wet, dr = dry;
+		int wp = write;
+		float lp = damped;
+		int end = off + len;
+		for(int i=off; i<end; i++){
+			float x = buf[i];
+			float y = r[(wp - d) & m];
+			lp = y + damp*(lp - y);
+			r[wp] = x + fb*lp;
+			wp = (wp + 1) & m;
+			buf[i] = dr*x + w*y;
+		}
+		write = wp;
+		damped = lp + 1e-18f - 1e-18f; // keep the state out of denormals when quiet
+	}
+
+	public void reset(){
+		for(int i=0; i<ring.length; i++){
+			ring[i] = 0f;
+		}
+		damped = 0f;
+	}
+}
@@ -0,0 +1,128 @@
+package com.tassile.synthflute;
+
+/**
+ * The processing chain after the voices, plus a record of where each block's time
+ * went. A graph is built (nodes allocated, parameters set) on whatever thread is
+ * configuring the patch and then handed to SynthEngine.setGraph(), which swaps it in
+ * at the next block boundary; the audio thread never sees a half-built chain.
+ *
+ * Every block, the time spent in the voices and in each node is measured with
+ * System.nanoTime() and kept as last/max/total per stage, so summary() shows which
+ * stage is eating into the block's deadline. The counters are written by the audio
+ * thread only; reading them from elsewhere may see a block half counted, which is
+ * fine for monitoring.
+ *
+ * A graph holds node state (filter memory, reverb tails), so it belongs to one engine.
+ */
+final class DspGraph {
+	static final String VOICES = "voices";
+
+	private final DspNode[] nodes;
+	private final String[] names; // [0] is the voices, then one per node
+	private final long[] last;
+	private final long[] max;
+	private final long[] total;
+	private long blocks = 0;
+	private long frames = 0;
+
+	DspGraph(DspNode... nodes){
+		this.nodes = nodes.clone();
+		int n = nodes.length + 1;
+		names = new String[n];
+		names[0] = VOICES;
+		for(int i=0; i<nodes.length; i++){
+			if(nodes[i] == null){
+				throw new IllegalArgumentException("node " + i + " is null");
+			}
+			names[i+1] = nodes[i].getClass().getSimpleName();
+		}
+		last = new long[n];
+		max = new long[n];
+		total = new long[n];
+	}
+
+	/**
+	 * Records how long the engine took to render the voices for a block of len frames.
+	 */
+	void voicesDone(long nanos, int len){
+		account(0, nanos);
+		blocks++;
+		frames += len;
+	}
+
+	/**
+	 * Runs every node over the block, in order, timing each.
+	 */
+	void process(float[] buf, int off, int len){
+		final DspNode[] n = nodes;
+		long t = System.nanoTime();
+		for(int i=0; i<n.length; i++){
+			n[i].process(buf, off, len);
+			long now = System.nanoTime();
+			account(i+1, now - t);
+			t = now;
+		}
+	}
+
+	private void account(int stage, long nanos){
+		last[stage] = nanos;
+		total[stage] += nanos;
+		if(nanos > max[stage]){
+			max[stage] = nanos;
+		}
+	}
+
+	void reset(){
+		for(int i=0; i<nodes.length; i++){
+			nodes[i].reset();
+		}
+	}
+
+	/** Number of nodes, not counting the voices. */
+	int size(){
+		return nodes.length;
+	}
+
+	DspNode node(int i){
+		return nodes[i];
+	}
+
+	/**
+	 * @param stage  0 for the voices, i+1 for node(i)
+	 * @return mean nanoseconds per block
+	 */
+	long meanNanos(int stage){
+		return blocks == 0 ? 0 : total[stage]/blocks;
+	}
+
+	long maxNanos(int stage){
+		return max[stage];
+	}
+
+	long lastNanos(int stage){
+		return last[stage];
+	}
+
+	long blocks(){
+		return blocks;
+	}
+
+	/**
+	 * One line per stage: mean and worst time per block, and the mean as a share of
+	 * the block's length in real time.
+	 */
+	String summary(int sr){
+		StringBuilder sb = new StringBuilder();
+		double blockNanos = blocks == 0 ? 0 : (double) frames/blocks * 1e9/sr;
+		long sum = 0;
+		for(int i=0; i<names.length; i++){
+			long mean = meanNanos(i);
+			sum += mean;
+			sb.append(String.format("%-12s mean %7.1fus  max %8.1fus  %5.1f%%%n", names[i],
+					mean/1000.0, max[i]/1000.0, blockNanos > 0 ? 100.0*mean/blockNanos : 0.0));
+		}
+		sb.append(String.format("%-12s mean %7.1fus  of %.1fus per block (%d blocks)", "total",
+				sum/1000.0, blockNanos/1000.0, blocks));
+		return sb.toString();
+	}
+}
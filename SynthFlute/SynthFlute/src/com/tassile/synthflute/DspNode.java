@@ -0,0 +1,19 @@
+package com.tassile.synthflute;
+
+/**
+ * One processing stage after the voices: a filter, an effect, a gain. Nodes are
+ * chained in a DspGraph and each processes the engine's float mix a whole block at a
+ * time, in place. Implementations keep their state in buffers allocated up front and
+ * must not allocate in process().
+ *
+ * Parameters may be changed from any thread; process() reads them once per block.
+ */
+interface DspNode {
+	/**
+	 * Processes len samples of buf in place, starting at off.
+	 */
+	void process(float[] buf, int off, int len);
+
+	/** Clears any state (filter memory, a ringing tail). */
+	void reset();
+}
@@ -0,0 +1,74 @@
+package com.tassile.synthflute;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer ring of key events (mask + nanoTime stamp)
+ * from the input thread to the render thread. No locks and no allocation after
+ * construction; each side only ever writes its own counter.
+ */
+final class EventQueue {
+	private final int[] masks;
+	private final long[] times;
+	private final int wrap;
+
+	private final AtomicLong head = new AtomicLong(); // next slot to read, owned by the consumer
+	private final AtomicLong tail = new AtomicLong(); // next slot to write, owned by the producer
+	private long headCache = 0; // producer's last look at head
+
+	/**
+	 * @param capacity  rounded up to a power of two
+	 */
+	EventQueue(int capacity){
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		masks = new int[size];
+		times = new long[size];
+		wrap = size - 1;
+	}
+
+	/**
+	 * Producer side.
+	 * @return false if the ring is full and the event was not queued
+	 */
+	boolean offer(int mask, long time){
+		long t = tail.get();
+		if(t - headCache > wrap){
+			headCache = head.get();
+			if(t - headCache > wrap){
+				return false;
+			}
+		}
+		int i = (int) t & wrap;
+		masks[i] = mask;
+		times[i] = time;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Consumer side. Copies up to max events into the given arrays.
+	 * @return the number of events copied
+	 */
+	int drain(int[] maskOut, long[] timeOut, int max){
+		long h = head.get();
+		long n = tail.get() - h;
+		if(n > max){
+			n = max;
+		}
+		for(int k=0; k<n; k++){
+			int i = (int) (h + k) & wrap;
+			maskOut[k] = masks[i];
+			timeOut[k] = times[i];
+		}
+		head.lazySet(h + n);
+		return (int) n;
+	}
+
+	boolean isEmpty(){
+		return tail.get() == head.get();
+	}
+
+	int capacity(){
+		return masks.length;
+	}
+}
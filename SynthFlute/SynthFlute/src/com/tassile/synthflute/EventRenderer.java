@@ -0,0 +1,98 @@
+package com.tassile.synthflute;
+
+/**
+ * The per-block work of the render thread, without the output: drain the key events
+ * the input thread queued, place each at its offset in the block, render. Kept free of
+ * android.* so the same loop can be driven by AudioTrack, a file or a test harness.
+ *
+ * Events are placed at the same relative position in the block as their arrival time
+ * had between the last two block starts. Every event is delayed by the same one block,
+ * so fast passages keep their timing instead of being snapped to block boundaries.
+ *
+ * With a LatencyHistogram attached, delivered() records, for every event rendered in
+ * the block, the time from its nanoTime stamp (taken on the input thread as soon as
+ * the frame was decoded) to the block being handed to the output.
+ */
+class EventRenderer implements BlockRenderer {
+	static final int MAX_EVENTS = 64; // events applied per block, the rest wait a block
+
+	private final SynthEngine engine;
+	private final EventQueue queue;
+	private final int block;
+	private LatencyHistogram latency;
+
+	private final int[] eventMasks = new int[MAX_EVENTS];
+	private final long[] eventTimes = new long[MAX_EVENTS];
+	private int pending = 0; // events rendered in the last block, not yet delivered
+	private long lastStart = -1;
+
+	EventRenderer(SynthEngine engine, EventQueue queue, int block){
+		this.engine = engine;
+		this.queue = queue;
+		this.block = block;
+	}
+
+	public void setLatencyHistogram(LatencyHistogram h){
+		latency = h;
+	}
+
+	public LatencyHistogram getLatencyHistogram(){
+		return latency;
+	}
+
+	public void render(short[] out, long now){
+		schedule(now);
+		engine.render(out, 0, block);
+	}
+
+	/**
+	 * The same as render(), but leaves the block as floats in the engine's buffer for
+	 * mixing with others (see Hub).
+	 */
+	float[] renderMix(long now){
+		schedule(now);
+		return engine.renderMix(block);
+	}
+
+	private void schedule(long now){
+		if(lastStart < 0){
+			lastStart = now;
+		}
+		long span = now - lastStart;
+		int n = queue.drain(eventMasks, eventTimes, MAX_EVENTS);
+		for(int i=0; i<n; i++){
+			engine.schedule(eventMasks[i], offsetOf(eventTimes[i] - lastStart, span, block));
+		}
+		pending = n;
+		lastStart = now;
+	}
+
+	public void delivered(long now){
+		LatencyHistogram h = latency;
+		if(h != null){
+			for(int i=0; i<pending; i++){
+				h.record(now - eventTimes[i]);
+			}
+		}
+		pending = 0;
+	}
+
+	public int blockSize(){
+		return block;
+	}
+
+	public void finish(){
+		engine.setRenderThreads(1);
+	}
+
+	/**
+	 * Maps a time since the previous block start onto a frame in this block.
+	 */
+	static int offsetOf(long sinceStart, long span, int block){
+		if(span <= 0 || sinceStart <= 0){
+			return 0;
+		}
+		long offset = sinceStart*block/span;
+		return offset >= block ? block-1 : (int) offset;
+	}
+}
@@ -0,0 +1,63 @@
+package com.tassile.synthflute;
+
+/**
+ * Resonant state-variable filter (the trapezoidal, "zero-delay feedback" form), which
+ * stays stable and in tune right up to Nyquist and can be swept without clicks.
+ *
+ * The coefficients are worked out in set(), on the caller's thread, and published
+ * together as one array, so process() always sees a matching set.
+ */
+class Filter implements DspNode {
+	static final int LOWPASS = 0;
+	static final int HIGHPASS = 1;
+	static final int BANDPASS = 2;
+
+	private final int sr;
+	private volatile float[] coeffs; // mode, k, a1, a2, a3
+	private float ic1 = 0f, ic2 = 0f;
+
+	Filter(int sr, int mode, float cutoffHz, float q){
+		this.sr = sr;
+		set(mode, cutoffHz, q);
+	}
+
+	/**
+	 * @param q  resonance, 0.707 for none, higher for a peak at the cutoff
+	 */
+	void set(int mode, float cutoffHz, float q){
+		if(mode < LOWPASS || mode > BANDPASS){
+			throw new IllegalArgumentException("unknown filter mode " + mode);
+		}
+		double fc = Math.max(1.0, Math.min(cutoffHz, sr*0.49));
+		double g = Math.tan(Math.PI*fc/sr);
+		double k = 1.0/Math.max(q, 0.1f);
+		double a1 = 1.0/(1.0 + g*(g + k));
+		double a2 = g*a1;
+		double a3 = g*a2;
+		coeffs = new float[]{ mode, (float) k, (float) a1, (float) a2, (float) a3 };
+	}
+
+	public void process(float[] buf, int off, int len){
+		final float[] c = coeffs;
+		final int mode = (int) c[0];
+		final float k = c[1], a1 = c[2], a2 = c[3], a3 = c[4];
+		float s1 = ic1, s2 = ic2;
+		int end = off + len;
+		for(int i=off; i<end; i++){
+			float x = buf[i];
+			float v3 = x - s2;
+			float v1 = a1*s1 + a2*v3;
+			float v2 = s2 + a2*s1 + a3*v3;
+			s1 = 2f*v1 - s1;
+			s2 = 2f*v2 - s2;
+			// the mode is fixed for the block, so this is predicted every time
+			buf[i] = mode == LOWPASS ? v2 : mode == BANDPASS ? v1 : x - k*v1 - v2;
+		}
+		ic1 = s1 + 1e-18f - 1e-18f; // flush denormals while the input is silent
+		ic2 = s2 + 1e-18f - 1e-18f;
+	}
+
+	public void reset(){
+		ic1 = ic2 = 0f;
+	}
+}
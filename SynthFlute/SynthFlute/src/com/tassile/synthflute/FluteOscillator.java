@@ -0,0 +1,189 @@
+package com.tassile.synthflute;
+
+/**
+ * Physical model of a flute (a digital waveguide, after Cook's slide flute). The bore
+ * is a delay line one period long; what comes out of its far end is low-passed (the
+ * losses along the tube), has its DC taken out, and is reflected back to the
+ * embouchure, where it pushes the air jet about. The jet is a second, shorter delay
+ * (the time the air takes to cross the hole) followed by a cubic that saturates like
+ * a jet flipping in and out of the edge, and what it lets through is fed back into
+ * the bore. The breath that drives the jet carries a little noise, which is most of
+ * what makes it sound blown rather than bowed.
+ *
+ * Both delay lines are float rings sized to a power of two, wrapped with a mask, and
+ * read with linear interpolation between samples so the pitch isn't rounded to whole
+ * samples. The noise is a 32-bit xorshift, which is a few integer ops per sample and
+ * never touches java.util.Random. The delay lengths are worked out when the note
+ * changes, not per sample; per sample there is no division and no call into Math.
+ *
+ * The model starts blowing on reset(), with a short rise in breath pressure so the
+ * tone speaks like a tongued note rather than clicking on.
+ */
+class FluteOscillator implements Oscillator {
+	static final double LOWEST_HZ = 20.0;
+
+	private static final float JET_RATIO = 0.5f;    // jet delay as a part of the period
+	private static final float JET_REFLECTION = 0.5f;
+	private static final float END_REFLECTION = 0.5f;
+	private static final float NOISE_GAIN = 0.15f;
+	private static final float DC_POLE = 0.9995f;
+	private static final float OUT_GAIN = 0.5f;     // brings a steady tone to about +-1
+	private static final double BRIGHT_HZ = 1500.0; // losses lighten above this
+	private static final float NOISE_SCALE = 1f / (1 << 23);
+
+	private final int sr;
+	private final float[] bore;
+	private final int boreMask;
+	private final float[] jet;
+	private final int jetMask;
+	private final float basePole;
+	private float lossPole; // one-pole low-pass in the bore, per note
+	private int boreWrite = 0;
+	private int jetWrite = 0;
+
+	// delays, set per note: whole samples and the fraction to interpolate by
+	private int boreInt = 1;
+	private float boreFrac = 0f;
+	private int jetInt = 1;
+	private float jetFrac = 0f;
+	private double hz = 0.0;
+
+	private float loss = 0f;   // low-pass state
+	private float dcIn = 0f;   // DC blocker state
+	private float dcOut = 0f;
+	private int noise = 0x2545F491;
+
+	private volatile float pressure = 0.9f;
+	private float breath = 0f;      // current pressure, rises to pressure on reset()
+	private final float breathStep; // rise per sample
+
+	FluteOscillator(int sr){
+		this.sr = sr;
+		int boreMax = (int) Math.ceil(sr/LOWEST_HZ) + 2;
+		bore = new float[ringSize(boreMax)];
+		boreMask = bore.length - 1;
+		jet = new float[ringSize((int) Math.ceil(sr/LOWEST_HZ*JET_RATIO) + 2)];
+		jetMask = jet.length - 1;
+		basePole = lossPole = 0.7f - 0.1f*22050f/sr;
+		breathStep = 1f/Math.max(1, sr/100); // 10ms
+	}
+
+	private static int ringSize(int need){
+		int size = Integer.highestOneBit(need);
+		return size < need ? size << 1 : size;
+	}
+
+	/**
+	 * How hard the flute is blown, 0..1.2. Below about 0.6 it struggles to speak,
+	 * above 1 it gets breathy and starts to overblow.
+	 */
+	void setPressure(float p){
+		pressure = Math.max(0f, Math.min(p, 1.2f));
+	}
+
+	public void setFrequency(double f){
+		if(f == hz){
+			return;
+		}
+		hz = f;
+		if(f < LOWEST_HZ){
+			f = LOWEST_HZ;
+		}
+		// a real flute's range ends about here; above it the losses would stop the
+		// loop from speaking at all, so they are lightened in proportion
+		lossPole = f > BRIGHT_HZ ? (float) (basePole*BRIGHT_HZ/f) : basePole;
+
+		// a round trip is one period, less what the loss filter adds and the DC
+		// blocker (a phase lead) takes away
+		double w = 2*Math.PI*f/sr;
+		double c = Math.cos(w), s = Math.sin(w);
+		double filterDelay = Math.atan2(lossPole*s, 1 - lossPole*c)
+				- Math.atan2(s, 1 - c) + Math.atan2(DC_POLE*s, 1 - DC_POLE*c);
+		double d = sr/f - filterDelay/w;
+		if(d < 2.0){
+			d = 2.0;
+		}
+		boreInt = (int) d;
+		boreFrac = (float) (d - boreInt);
+		double j = sr/f*JET_RATIO;
+		if(j < 1.0){
+			j = 1.0;
+		}
+		jetInt = (int) j;
+		jetFrac = (float) (j - jetInt);
+	}
+
+	public void setNote(NoteTable notes, int index){
+		setFrequency(notes.frequency(index));
+	}
+
+	public void render(float[] buf, int off, int len, float amp){
+		final float[] b = bore, jt = jet;
+		final int bm = boreMask, jm = jetMask;
+		final int bi = boreInt, ji = jetInt;
+		final float bf = boreFrac, jf = jetFrac;
+		final float pole = lossPole, gain = 1f - lossPole;
+		final float target = pressure;
+		final float a = amp*OUT_GAIN;
+		int bw = boreWrite, jw = jetWrite;
+		float lp = loss, x1 = dcIn, y1 = dcOut, br = breath;
+		int n = noise;
+		int end = off + len;
+		for(int i=off; i<end; i++){
+			if(br < target){
+				br += breathStep;
+			} else {
+				br = target;
+			}
+			n ^= n << 13;
+			n ^= n >>> 17;
+			n ^= n << 5;
+			float blow = br + br*NOISE_GAIN*((n >> 8)*NOISE_SCALE);
+
+			// far end of the bore, through the losses and the DC blocker
+			int r = bw - bi;
+			float s0 = b[(r) & bm], s1 = b[(r - 1) & bm];
+			float bore = s0 + bf*(s1 - s0);
+			lp = gain*bore + pole*lp;
+			float y = lp - x1 + DC_POLE*y1;
+			x1 = lp;
+			y1 = y;
+
+			// across the embouchure hole, then the jet
+			jt[jw] = blow - JET_REFLECTION*y;
+			r = jw - ji;
+			s0 = jt[r & jm];
+			s1 = jt[(r - 1) & jm];
+			float x = s0 + jf*(s1 - s0);
+			x = x*(x*x - 1f);
+			if(x > 1f){
+				x = 1f;
+			} else if(x < -1f){
+				x = -1f;
+			}
+			jw = (jw + 1) & jm;
+
+			b[bw] = x + END_REFLECTION*y;
+			bw = (bw + 1) & bm;
+			buf[i] += a*y;
+		}
+		boreWrite = bw;
+		jetWrite = jw;
+		loss = lp;
+		dcIn = x1 + 1e-18f - 1e-18f; // flush denormals once the tone has died
+		dcOut = y1 + 1e-18f - 1e-18f;
+		breath = br;
+		noise = n;
+	}
+
+	public void reset(){
+		for(int i=0; i<bore.length; i++){
+			bore[i] = 0f;
+		}
+		for(int i=0; i<jet.length; i++){
+			jet[i] = 0f;
+		}
+		loss = dcIn = dcOut = 0f;
+		breath = 0f;
+	}
+}
@@ -0,0 +1,157 @@
+package com.tassile.synthflute;
+
+import java.io.IOException;
+
+/**
+ * Plays one flute at a time from a Transport, through an engine and output of its own:
+ * the link's bytes are decoded in place as they arrive, key events go through an
+ * EventQueue to a RenderThread, and the render thread writes to the sink. While a
+ * flute is playing any other link is refused; hangUp() frees the slot for the next.
+ *
+ * Like HubServer nothing here blocks the transport's thread, and nothing needs a
+ * device: with a NullSink it runs the same over a loopback socket on a desktop.
+ */
+class FluteServer implements Transport.Listener {
+	static final int EVENT_QUEUE_SIZE = 256; // key events in flight between input and render
+
+	interface Output {
+		/** A fresh engine, with the current voice settings, for a flute that connected. */
+		SynthEngine newEngine();
+
+		/** Block size and buffering for a new session. */
+		LatencyConfig latency();
+
+		/** Where a new session plays; it should hold latency.maxBufferFrames(). */
+		AudioSink newSink(LatencyConfig latency);
+	}
+
+	/**
+	 * One flute's link and what it plays through.
+	 */
+	static final class Session implements FrameDecoder.Listener {
+		final Transport.Connection connection;
+		final SynthEngine engine;
+		final EventQueue queue = new EventQueue(EVENT_QUEUE_SIZE);
+		final FrameDecoder decoder = new FrameDecoder(this);
+		final RenderThread renderThread;
+		final SessionRecorder recorder;
+		IOException recorderError; // from closing the recording, if it failed
+		volatile boolean hungUp = false; // dropped by hangUp(), not by the link
+		private long dropped = 0; // events lost to a full queue, transport thread only
+
+		Session(Transport.Connection connection, SynthEngine engine, AudioSink sink,
+				LatencyConfig latency, SessionRecorder recorder){
+			this.connection = connection;
+			this.engine = engine;
+			this.recorder = recorder;
+			renderThread = new RenderThread(engine, queue, sink, latency);
+		}
+
+		public void onKeys(int mask){
+			if(!queue.offer(mask, System.nanoTime())){
+				dropped++;
+			}
+		}
+
+		long droppedCount(){
+			return dropped;
+		}
+	}
+
+	private final Output output;
+	private volatile boolean tracing = false;
+	private volatile Session current; // written under this
+
+	FluteServer(Output output){
+		this.output = output;
+	}
+
+	/**
+	 * Records input to output latency (RenderThread.getLatency()) from the next session.
+	 */
+	void setTracing(boolean on){
+		tracing = on;
+	}
+
+	/**
+	 * Where to record a new session's bytes (see SessionReader), or null not to.
+	 */
+	SessionRecorder newRecorder(Transport.Connection c){
+		return null;
+	}
+
+	public boolean onConnected(Transport.Connection c){
+		Session s;
+		synchronized(this){
+			if(current != null){
+				return false; // one flute at a time
+			}
+			LatencyConfig latency = output.latency();
+			s = new Session(c, output.newEngine(), output.newSink(latency), latency, newRecorder(c));
+			s.renderThread.setTracing(tracing);
+			s.renderThread.start();
+			c.attach(s);
+			current = s;
+		}
+		// ask for the binary protocol; old firmware ignores this and keeps sending ASCII
+		try {
+			c.write(FrameEncoder.HELLO_V2);
+		} catch (IOException e) {
+			// the read side will see the link go
+		}
+		return true;
+	}
+
+	public void onData(Transport.Connection c, byte[] b, int off, int len){
+		Session s = (Session) c.attachment();
+		if(s.recorder != null){
+			s.recorder.record(System.nanoTime(), b, off, len);
+		}
+		s.decoder.feed(b, off, len);
+	}
+
+	public void onDisconnected(Transport.Connection c, IOException cause){
+		Session s = (Session) c.attachment();
+		synchronized(this){
+			if(current == s){
+				current = null;
+			}
+		}
+		s.renderThread.halt();
+		if(s.recorder != null){
+			try {
+				s.recorder.close();
+			} catch (IOException e) {
+				s.recorderError = e;
+			}
+		}
+	}
+
+	public void onConnectFailed(String address, IOException cause){
+		// nothing was set up for it
+	}
+
+	/**
+	 * The flute playing now, or null.
+	 */
+	Session session(){
+		return current;
+	}
+
+	/**
+	 * Silences and drops the flute playing now, if any, so another can connect. Its
+	 * link still gets onDisconnected(), with Session.hungUp set.
+	 */
+	void hangUp(){
+		Session s;
+		synchronized(this){
+			s = current;
+			current = null;
+		}
+		if(s != null){
+			s.hungUp = true;
+			s.renderThread.halt();
+			s.connection.close();
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package com.tassile.synthflute;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Incremental decoder for the flute's key-mask frames. Bytes can be fed in whatever
+ * chunks they arrive in; nothing is copied or allocated per frame.
+ *
+ * Two formats are understood, and can be mixed on the same stream:
+ *
+ * Version 1 (legacy ASCII): "!" + decimal digits + " ", e.g. "!131 ". The number is
+ * built up digit by digit as it comes in.
+ *
+ * Version 2 (binary, see FrameEncoder): 4 bytes, the first with its top bit set and
+ * the other three with it clear, carrying 28 bits:
+ *
+ *   [27..16] key mask   [15..12] sequence   [11..5] ms since last frame   [4..0] check
+ *
+ * All ASCII bytes have the top bit clear, so a v2 frame can always be told apart from
+ * v1 by its first byte, and a flute that never answers the v2 hello just keeps
+ * working as v1.
+ *
+ * Anything that doesn't fit (a non-digit inside a frame, an empty frame, a value
+ * too big for the 12 keys, a short or corrupt binary frame) is counted as malformed
+ * and dropped, and the decoder waits for the next frame start before trusting
+ * anything again. Gaps in the v2 sequence numbers are counted as dropped frames.
+ */
+class FrameDecoder {
+	static final byte BEGIN = 33; // ! = ascii 33
+	static final byte END = 32;   // 10 = ASCII newline. 32 = ASCII space
+	static final int MAX_DIGITS = 4; // "4095", all 12 keys down
+
+	static final int V2_BYTES = 4;
+	static final int SEQ_MASK = 0xF;
+	static final int DT_MAX = 0x7F; // ms, saturates
+
+	interface Listener {
+		/** Called on the decoding thread for every good frame. */
+		void onKeys(int mask);
+	}
+
+	private final Listener listener;
+	private final byte[] readBuffer;
+
+	// v1 state
+	private boolean inFrame = false;
+	private int value = 0;
+	private int digits = 0;
+
+	// v2 state
+	private int binPos = 0; // bytes of the current binary frame seen so far
+	private int binBits = 0;
+	private int lastSeq = -1;
+	private long deviceTime = 0;
+
+	private int version = 1;
+	private long frames = 0;
+	private long malformed = 0;
+	private long dropped = 0;
+
+	FrameDecoder(Listener listener){
+		this(listener, 64);
+	}
+
+	/**
+	 * @param readSize  size of the buffer used by read(InputStream)
+	 */
+	FrameDecoder(Listener listener, int readSize){
+		this.listener = listener;
+		readBuffer = new byte[readSize];
+	}
+
+	/**
+	 * Does one read() on the stream (so it blocks the same way read() does) and
+	 * decodes whatever came back.
+	 * @return the number of bytes read, or -1 at end of stream
+	 */
+	int read(InputStream in) throws IOException {
+		int n = in.read(readBuffer, 0, readBuffer.length);
+		if(n > 0){
+			feed(readBuffer, 0, n);
+		}
+		return n;
+	}
+
+	void feed(byte[] b, int off, int len){
+		int end = off + len;
+		for(int i=off; i<end; i++){
+			feed(b[i]);
+		}
+	}
+
+	void feed(byte b){
+		if(b < 0){
+			// top bit set: start of a v2 frame
+			if(binPos != 0 || inFrame){
+				malformed++;
+				inFrame = false;
+			}
+			binBits = b & 0x7F;
+			binPos = 1;
+		} else if(binPos != 0){
+			binBits = (binBits << 7) | b;
+			if(++binPos == V2_BYTES){
+				binPos = 0;
+				binaryFrame(binBits);
+			}
+		} else {
+			asciiByte(b);
+		}
+	}
+
+	private void asciiByte(byte b){
+		if(b == BEGIN){
+			if(inFrame){
+				// never saw the end of the last one
+				malformed++;
+			}
+			inFrame = true;
+			value = 0;
+			digits = 0;
+		} else if(!inFrame){
+			// garbage between frames, skip it
+		} else if(b == END){
+			inFrame = false;
+			if(digits == 0){
+				malformed++;
+			} else {
+				frames++;
+				version = 1;
+				listener.onKeys(value);
+			}
+		} else if(b >= '0' && b <= '9' && digits < MAX_DIGITS){
+			value = value*10 + (b - '0');
+			digits++;
+			if(value > KeyState.MASK){
+				drop();
+			}
+		} else {
+			drop();
+		}
+	}
+
+	private void binaryFrame(int bits){
+		int payload = bits >>> 5;
+		if((bits & 0x1F) != FrameEncoder.check(payload)){
+			malformed++;
+			// most likely a cut-off frame followed by ASCII, give those bytes back
+			asciiByte((byte) ((bits >>> 14) & 0x7F));
+			asciiByte((byte) ((bits >>> 7) & 0x7F));
+			asciiByte((byte) (bits & 0x7F));
+			return;
+		}
+		int mask = payload >>> 11;
+		int seq = (payload >>> 7) & SEQ_MASK;
+		int dt = payload & DT_MAX;
+
+		if(lastSeq >= 0){
+			dropped += (seq - lastSeq - 1) & SEQ_MASK;
+		}
+		lastSeq = seq;
+		deviceTime += dt;
+		frames++;
+		version = 2;
+		listener.onKeys(mask);
+	}
+
+	private void drop(){
+		malformed++;
+		inFrame = false;
+	}
+
+	/** Discards any partly received frame, e.g. after a reconnect. */
+	void reset(){
+		inFrame = false;
+		binPos = 0;
+		lastSeq = -1;
+	}
+
+	long frameCount(){
+		return frames;
+	}
+
+	long malformedCount(){
+		return malformed;
+	}
+
+	/** Frames missing from the v2 sequence; always 0 for v1. */
+	long droppedCount(){
+		return dropped;
+	}
+
+	/** Format of the last good frame, 1 or 2. */
+	int version(){
+		return version;
+	}
+
+	/** Sum of the v2 timestamp deltas, i.e. the flute's clock in ms. */
+	long deviceTimeMs(){
+		return deviceTime;
+	}
+}
@@ -0,0 +1,68 @@
+package com.tassile.synthflute;
+
+/**
+ * Builds key-mask frames in either wire format (see FrameDecoder for the layouts).
+ * The app itself only receives, but this is what the flute firmware has to produce,
+ * and the replay and test tools use it to make traffic.
+ *
+ * An instance keeps the v2 sequence number and the time of the previous frame.
+ */
+class FrameEncoder {
+	/** Sent by the app on connect; a flute that understands it switches to v2. */
+	static final byte[] HELLO_V2 = { '?', 'v', '2', '\n' };
+
+	static final int MAX_ASCII_BYTES = FrameDecoder.MAX_DIGITS + 2;
+
+	private int seq = 0;
+	private long lastTimeMs = -1;
+
+	/**
+	 * Writes one v2 frame for mask at the given time (any ms clock).
+	 * @return the number of bytes written, always FrameDecoder.V2_BYTES
+	 */
+	int encode(int mask, long timeMs, byte[] out, int off){
+		long dt = lastTimeMs < 0 ? 0 : timeMs - lastTimeMs;
+		lastTimeMs = timeMs;
+		int n = encodeV2(mask, seq, (int) Math.min(Math.max(dt, 0), FrameDecoder.DT_MAX), out, off);
+		seq = (seq + 1) & FrameDecoder.SEQ_MASK;
+		return n;
+	}
+
+	static int encodeV2(int mask, int seq, int dtMs, byte[] out, int off){
+		int payload = ((mask & KeyState.MASK) << 11)
+				| ((seq & FrameDecoder.SEQ_MASK) << 7)
+				| (dtMs & FrameDecoder.DT_MAX);
+		int bits = (payload << 5) | check(payload);
+		out[off] = (byte) (0x80 | (bits >>> 21));
+		out[off+1] = (byte) ((bits >>> 14) & 0x7F);
+		out[off+2] = (byte) ((bits >>> 7) & 0x7F);
+		out[off+3] = (byte) (bits & 0x7F);
+		return FrameDecoder.V2_BYTES;
+	}
+
+	/**
+	 * Writes "!<mask> ".
+	 * @return the number of bytes written, at most MAX_ASCII_BYTES
+	 */
+	static int encodeAscii(int mask, byte[] out, int off){
+		mask &= KeyState.MASK;
+		int digits = 1;
+		for(int m=mask; m >= 10; m /= 10){
+			digits++;
+		}
+		out[off] = FrameDecoder.BEGIN;
+		for(int i=digits; i>0; i--){
+			out[off+i] = (byte) ('0' + mask % 10);
+			mask /= 10;
+		}
+		out[off+digits+1] = FrameDecoder.END;
+		return digits + 2;
+	}
+
+	/** 5-bit check over the 23-bit v2 payload. */
+	static int check(int payload){
+		int c = payload ^ (payload >>> 5) ^ (payload >>> 10) ^ (payload >>> 15) ^ (payload >>> 20);
+		// XOR with a fixed 0b10101 so an all-zero frame doesn't check out
+		return (c ^ 0x15) & 0x1F;
+	}
+}
@@ -0,0 +1,47 @@
+package com.tassile.synthflute;
+
+/**
+ * Master gain. A change is ramped across the next block rather than applied in one
+ * step, so turning it up or down never clicks.
+ */
+class Gain implements DspNode {
+	private volatile float target;
+	private float current;
+
+	Gain(float gain){
+		target = current = gain;
+	}
+
+	void setGain(float gain){
+		target = gain;
+	}
+
+	void setDecibels(float db){
+		target = (float) Math.pow(10, db/20.0);
+	}
+
+	float getGain(){
+		return target;
+	}
+
+	public void process(float[] buf, int off, int len){
+		final float to = target;
+		float g = current;
+		if(g == to){
+			for(int i=off; i<off+len; i++){
+				buf[i] *= g;
+			}
+			return;
+		}
+		float step = (to - g)/len;
+		for(int i=off; i<off+len; i++){
+			g += step;
+			buf[i] *= g;
+		}
+		current = to;
+	}
+
+	public void reset(){
+		current = target;
+	}
+}
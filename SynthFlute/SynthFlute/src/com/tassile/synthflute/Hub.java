@@ -0,0 +1,291 @@
+package com.tassile.synthflute;
+
+/**
+ * Several flutes playing at once through one output. Each flute that joins becomes
+ * a Client with its own decoder, event queue and engine (its voice group); once per
+ * block the render thread renders every client as floats, sums them, runs the
+ * result through the hub's DspGraph and writes it out as one stream.
+ *
+ * The sum is scaled by one over the number of clients in the mix, so a full hub has
+ * the same headroom as one flute instead of clipping. The gain drops at once when a
+ * flute joins and comes back up over GAIN_RISE_MS when one has gone, so the rest
+ * don't jump in level.
+ *
+ * Each client is fed by a reader (see Client.feed()): a thread per link, or one
+ * selector thread for all of them (see HubServer). Feeding a client never blocks, and
+ * the render thread only takes what a client has already queued, so a link that
+ * stalls or dies just stops that flute: the others, and the output, carry on without
+ * waiting for it.
+ *
+ * The client list is copied on write under the hub's lock and read once per block
+ * without one. A client that leaves has its keys released and stays in the mix until
+ * its notes have died away; it is dropped from the list on the next join() or
+ * prune().
+ */
+class Hub implements BlockRenderer {
+	static final int MAX_CLIENTS = 8;
+	static final int QUEUE_SIZE = 256; // key events in flight per client
+	static final int GAIN_RISE_MS = 250; // from a full hub's gain back to one flute's
+
+	final int sr;
+	int amp = 10000;
+
+	private final int block;
+	private final float[] mix;
+	private final float gainRise; // most the mix gain may grow per block
+	private float gain = 1f; // render thread only
+	private volatile Client[] clients = new Client[0];
+	private volatile DspGraph graph = new DspGraph();
+	private LatencyHistogram latency;
+
+	Hub(int sr, int block){
+		this.sr = sr;
+		this.block = block;
+		mix = new float[block];
+		gainRise = (1f - 1f/MAX_CLIENTS)*block*1000/(sr*GAIN_RISE_MS);
+	}
+
+	/**
+	 * Adds a flute. Safe to call from any thread, e.g. the one that accepted the link.
+	 * @param engine  the client's own engine, set up by the caller; it is rendered
+	 *                from the render thread from now on
+	 * @return the client to feed, or null if MAX_CLIENTS are already playing
+	 */
+	synchronized Client join(String name, SynthEngine engine){
+		if(engine.sr != sr){
+			throw new IllegalArgumentException("engine runs at " + engine.sr + " Hz, hub at " + sr);
+		}
+		prune();
+		Client[] cs = clients;
+		if(cs.length >= MAX_CLIENTS){
+			return null;
+		}
+		Client c = new Client(name, engine, block);
+		c.renderer.setLatencyHistogram(latency);
+		Client[] next = new Client[cs.length + 1];
+		System.arraycopy(cs, 0, next, 0, cs.length);
+		next[cs.length] = c;
+		clients = next;
+		return c;
+	}
+
+	/**
+	 * Drops the clients that have left and gone quiet.
+	 */
+	synchronized void prune(){
+		Client[] cs = clients;
+		int live = 0;
+		for(int i=0; i<cs.length; i++){
+			if(!cs[i].done){
+				live++;
+			}
+		}
+		if(live == cs.length){
+			return;
+		}
+		Client[] next = new Client[live];
+		int n = 0;
+		for(int i=0; i<cs.length; i++){
+			if(!cs[i].done){
+				next[n++] = cs[i];
+			}
+		}
+		clients = next;
+	}
+
+	public void render(short[] out, long now){
+		final float[] m = mix;
+		for(int i=0; i<block; i++){
+			m[i] = 0f;
+		}
+		final Client[] cs = clients;
+		final DspGraph g = graph;
+		long t0 = System.nanoTime();
+		int live = 0;
+		for(int c=0; c<cs.length; c++){
+			Client cl = cs[c];
+			if(cl.done){
+				continue;
+			}
+			live++;
+			if(cl.closing && !cl.released && cl.queue.isEmpty()){
+				// everything it sent has been played, now let go of the keys
+				cl.engine.schedule(0, 0);
+				cl.released = true;
+			}
+			float[] v = cl.renderer.renderMix(now);
+			for(int i=0; i<block; i++){
+				m[i] += v[i];
+			}
+			if(cl.released && (cl.engine.getMode() == SynthEngine.MODE_MONO || cl.engine.activeVoices() == 0)){
+				// its voice workers go with it; prune() only drops it from the list
+				cl.engine.setRenderThreads(1);
+				cl.done = true;
+			}
+		}
+		// headroom for everyone who played this block, ramped over the block going up
+		float target = 1f/Math.max(1, live);
+		float from = gain;
+		float to = target < from ? target : Math.min(target, from + gainRise);
+		if(to < from){
+			from = to; // at once, before anything can clip
+		}
+		float step = (to - from)/block;
+		for(int i=0; i<block; i++){
+			m[i] *= from + step*i;
+		}
+		gain = to;
+		g.voicesDone(System.nanoTime() - t0, block);
+		g.process(m, 0, block);
+		SynthEngine.toShorts(m, amp, out, 0, block);
+	}
+
+	public void delivered(long now){
+		final Client[] cs = clients;
+		for(int c=0; c<cs.length; c++){
+			cs[c].renderer.delivered(now);
+		}
+	}
+
+	public int blockSize(){
+		return block;
+	}
+
+	/**
+	 * One histogram for all clients. Call before the render thread starts.
+	 */
+	public synchronized void setLatencyHistogram(LatencyHistogram h){
+		latency = h;
+		Client[] cs = clients;
+		for(int c=0; c<cs.length; c++){
+			cs[c].renderer.setLatencyHistogram(h);
+		}
+	}
+
+	public LatencyHistogram getLatencyHistogram(){
+		return latency;
+	}
+
+	public void finish(){
+		final Client[] cs = clients;
+		for(int c=0; c<cs.length; c++){
+			cs[c].engine.setRenderThreads(1);
+		}
+	}
+
+	/**
+	 * Replaces the graph the whole mix runs through, from the next block. Safe to call
+	 * from any thread.
+	 */
+	void setGraph(DspGraph graph){
+		if(graph == null){
+			throw new IllegalArgumentException("null graph, use an empty one");
+		}
+		this.graph = graph;
+	}
+
+	void setEffects(DspNode... chain){
+		setGraph(new DspGraph(chain));
+	}
+
+	DspGraph getGraph(){
+		return graph;
+	}
+
+	/**
+	 * Retunes every client from its next block.
+	 */
+	void setTuning(Tuning tuning){
+		final Client[] cs = clients;
+		for(int c=0; c<cs.length; c++){
+			cs[c].engine.setTuning(tuning);
+		}
+	}
+
+	/**
+	 * Clients that have not finished leaving.
+	 */
+	int clientCount(){
+		final Client[] cs = clients;
+		int n = 0;
+		for(int c=0; c<cs.length; c++){
+			if(!cs[c].done){
+				n++;
+			}
+		}
+		return n;
+	}
+
+	Client[] clients(){
+		return clients.clone();
+	}
+
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		final Client[] cs = clients;
+		sb.append(cs.length).append(" clients");
+		for(int c=0; c<cs.length; c++){
+			sb.append("\n  ").append(cs[c]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * One flute in the hub. feed() and leave() are for its reader, one thread at a
+	 * time; the engine is rendered by the hub's render thread.
+	 */
+	static final class Client implements FrameDecoder.Listener {
+		final String name;
+		final SynthEngine engine;
+		final FrameDecoder decoder;
+		private final EventQueue queue;
+		private final EventRenderer renderer;
+		private long dropped = 0; // events lost to a full queue
+		private volatile boolean closing = false;
+		private boolean released = false; // render thread only
+		private volatile boolean done = false;
+
+		private Client(String name, SynthEngine engine, int block){
+			this.name = name;
+			this.engine = engine;
+			queue = new EventQueue(QUEUE_SIZE);
+			renderer = new EventRenderer(engine, queue, block);
+			decoder = new FrameDecoder(this);
+		}
+
+		public void onKeys(int mask){
+			if(!queue.offer(mask, System.nanoTime())){
+				dropped++;
+			}
+		}
+
+		/**
+		 * Decodes bytes from this client's link.
+		 */
+		void feed(byte[] b, int off, int len){
+			decoder.feed(b, off, len);
+		}
+
+		/**
+		 * The link is gone. Once what it sent has been played its keys are released,
+		 * and the client leaves the mix when its notes have died away. Never blocks.
+		 */
+		void leave(){
+			closing = true;
+		}
+
+		boolean isDone(){
+			return done;
+		}
+
+		long droppedCount(){
+			return dropped;
+		}
+
+		public String toString(){
+			return name + ": v" + decoder.version() + " frames " + decoder.frameCount()
+					+ " malformed " + decoder.malformedCount() + " lost on link " + decoder.droppedCount()
+					+ " dropped " + dropped + (done ? ", left" : closing ? ", leaving" : "");
+		}
+	}
+}
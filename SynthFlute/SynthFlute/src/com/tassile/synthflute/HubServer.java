@@ -0,0 +1,76 @@
+package com.tassile.synthflute;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Plays every link of a Transport through a Hub: a connection joins as a client with
+ * an engine of its own, its bytes go to that client's decoder, and it leaves when the
+ * link drops. Nothing here blocks, so it is as happy on one selector thread serving
+ * every peer as on a thread per link.
+ */
+class HubServer implements Transport.Listener {
+	interface EngineFactory {
+		/** A fresh engine (voice group) for a flute that just connected. */
+		SynthEngine newEngine();
+	}
+
+	private final Hub hub;
+	private final EngineFactory engines;
+	private final CopyOnWriteArrayList<Transport.Connection> connections = new CopyOnWriteArrayList<Transport.Connection>();
+
+	HubServer(Hub hub, EngineFactory engines){
+		this.hub = hub;
+		this.engines = engines;
+	}
+
+	public boolean onConnected(Transport.Connection c){
+		Hub.Client client = hub.join(c.name(), engines.newEngine());
+		if(client == null){
+			return false; // hub full
+		}
+		c.attach(client);
+		connections.add(c);
+		// ask for the binary protocol; old firmware ignores this and keeps sending ASCII
+		try {
+			c.write(FrameEncoder.HELLO_V2);
+		} catch (IOException e) {
+			// the read side will see the link go
+		}
+		return true;
+	}
+
+	public void onData(Transport.Connection c, byte[] b, int off, int len){
+		((Hub.Client) c.attachment()).feed(b, off, len);
+	}
+
+	public void onDisconnected(Transport.Connection c, IOException cause){
+		connections.remove(c);
+		((Hub.Client) c.attachment()).leave();
+	}
+
+	public void onConnectFailed(String address, IOException cause){
+		// nothing joined, nothing to undo
+	}
+
+	/**
+	 * Sends bytes to every connected peer.
+	 */
+	void broadcast(byte[] b){
+		for(Transport.Connection c : connections){
+			try {
+				c.write(b);
+			} catch (IOException e) {
+				// that one is going away
+			}
+		}
+	}
+
+	int connectionCount(){
+		return connections.size();
+	}
+
+	Hub hub(){
+		return hub;
+	}
+}
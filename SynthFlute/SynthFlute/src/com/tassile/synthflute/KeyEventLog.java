@@ -0,0 +1,82 @@
+package com.tassile.synthflute;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * A recorded sequence of key masks with their times, for offline rendering.
+ *
+ * The file format is plain text, one event per line: time in nanoseconds from the
+ * start of the session, then the key mask in decimal, e.g. "125000000 131".
+ * Blank lines and lines starting with # are ignored. Times must not go backwards.
+ */
+class KeyEventLog {
+	long[] times = new long[64];
+	int[] masks = new int[64];
+	int count = 0;
+
+	void add(long timeNs, int mask){
+		if(count > 0 && timeNs < times[count-1]){
+			throw new IllegalArgumentException("event at " + timeNs + "ns is before the previous one");
+		}
+		if(count == times.length){
+			long[] t = new long[count*2];
+			int[] m = new int[count*2];
+			System.arraycopy(times, 0, t, 0, count);
+			System.arraycopy(masks, 0, m, 0, count);
+			times = t;
+			masks = m;
+		}
+		times[count] = timeNs;
+		masks[count] = mask & KeyState.MASK;
+		count++;
+	}
+
+	/** Time of the last event, in ns. */
+	long duration(){
+		return count == 0 ? 0 : times[count-1];
+	}
+
+	static KeyEventLog read(File f) throws IOException {
+		KeyEventLog log = new KeyEventLog();
+		BufferedReader r = new BufferedReader(new FileReader(f));
+		try {
+			String line;
+			int lineNo = 0;
+			while((line = r.readLine()) != null){
+				lineNo++;
+				line = line.trim();
+				if(line.length() == 0 || line.charAt(0) == '#'){
+					continue;
+				}
+				String[] parts = line.split("\\s+");
+				if(parts.length != 2){
+					throw new IOException(f + ":" + lineNo + ": expected \"<time ns> <mask>\"");
+				}
+				try {
+					log.add(Long.parseLong(parts[0]), Integer.parseInt(parts[1]));
+				} catch (IllegalArgumentException e) {
+					throw new IOException(f + ":" + lineNo + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			r.close();
+		}
+		return log;
+	}
+
+	void write(File f) throws IOException {
+		PrintWriter w = new PrintWriter(f);
+		try {
+			w.println("# time_ns mask");
+			for(int i=0; i<count; i++){
+				w.println(times[i] + " " + masks[i]);
+			}
+		} finally {
+			w.close();
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.tassile.synthflute;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the pressed keys from the input thread to the audio thread. The whole 12-bit
+ * mask is one int, so a reader can never see half of an update, and it is published
+ * without a lock: the writer never blocks the audio thread and the audio thread never
+ * waits on a monitor. Nothing is allocated per update.
+ *
+ * Meant for one writer and one reader; the reader should call get() once per block.
+ */
+final class KeyState {
+	static final int MASK = (1 << SynthEngine.NUM_KEYS) - 1;
+
+	private final AtomicInteger mask = new AtomicInteger();
+
+	/**
+	 * Publishes a new key mask. lazySet is an ordered store, which is all a single
+	 * writer needs, and is cheaper than a full volatile write.
+	 */
+	void set(int keys){
+		mask.lazySet(keys & MASK);
+	}
+
+	int get(){
+		return mask.get();
+	}
+}
@@ -0,0 +1,78 @@
+package com.tassile.synthflute;
+
+/**
+ * Output buffering for a latency mode. The hardware buffer (how much the device
+ * queues) and the render block (how much is rendered per pass, i.e. how often key
+ * changes are picked up) are chosen separately, both in frames.
+ *
+ * The worst-case time from a key change to it being heard is about one block (the
+ * change waits for the next pass) plus one full hardware buffer ahead of it, which
+ * is what outputLatencyMs() reports. The device's own mixer and DAC add to that.
+ */
+class LatencyConfig {
+	static final int MODE_LOW_LATENCY = 0;  // smallest buffer the device allows, for live playing
+	static final int MODE_BALANCED = 1;     // some headroom for a busy device
+	static final int MODE_POWER_SAVING = 2; // big blocks, few wakeups, for playback
+
+	// block size and buffer (in multiples of the device minimum) per mode
+	private static final int[] BLOCK = { 64, 256, 1024 };
+	private static final int[] BUFFERS = { 1, 2, 4 };
+	static final int MAX_GROWTH = 4; // how far BufferController may grow the buffer after underruns
+
+	final int mode;
+	final int sr;
+	final int bufferFrames;
+	final int blockFrames;
+
+	LatencyConfig(int mode, int sr, int bufferFrames, int blockFrames){
+		if(blockFrames < 1 || bufferFrames < blockFrames){
+			throw new IllegalArgumentException("block " + blockFrames + " does not fit buffer " + bufferFrames);
+		}
+		this.mode = mode;
+		this.sr = sr;
+		this.bufferFrames = bufferFrames;
+		this.blockFrames = blockFrames;
+	}
+
+	/**
+	 * @param minBufferFrames  smallest buffer the device accepts, in frames (not bytes)
+	 */
+	static LatencyConfig choose(int mode, int sr, int minBufferFrames){
+		if(mode < MODE_LOW_LATENCY || mode > MODE_POWER_SAVING){
+			throw new IllegalArgumentException("unknown latency mode " + mode);
+		}
+		int block = BLOCK[mode];
+		int buffer = minBufferFrames * BUFFERS[mode];
+		// at least two blocks, so one can be rendered while the other plays,
+		// and a whole number of them so writes line up with the buffer
+		if(buffer < 2*block){
+			buffer = 2*block;
+		}
+		buffer = (buffer + block - 1) / block * block;
+		return new LatencyConfig(mode, sr, buffer, block);
+	}
+
+	/** Room to allocate in the sink so the buffer can grow after underruns. */
+	int maxBufferFrames(){
+		return bufferFrames * MAX_GROWTH;
+	}
+
+	/** Theoretical worst-case output latency, one block plus a full buffer. */
+	double outputLatencyMs(){
+		return (bufferFrames + blockFrames) * 1000.0 / sr;
+	}
+
+	static String modeName(int mode){
+		switch(mode){
+		case MODE_LOW_LATENCY: return "low-latency";
+		case MODE_BALANCED: return "balanced";
+		case MODE_POWER_SAVING: return "power-saving";
+		default: return "mode " + mode;
+		}
+	}
+
+	public String toString(){
+		return modeName(mode) + ": buffer " + bufferFrames + " frames, block " + blockFrames
+				+ " frames, " + String.format("%.1f", outputLatencyMs()) + " ms";
+	}
+}
@@ -0,0 +1,110 @@
+package com.tassile.synthflute;
+
+/**
+ * Allocation-free histogram of latencies in nanoseconds. Buckets are log-linear:
+ * every power of two is split into 16 slices, so any reported value is within about
+ * 6% of the real one, from 1ns up to around 18 minutes.
+ *
+ * record() is meant for a single thread (the render thread). Reading from another
+ * thread is allowed and never blocks the writer, but may see a recording that is
+ * still in progress.
+ */
+final class LatencyHistogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int MAX_SHIFT = 36;
+
+	private final long[] counts = new long[(MAX_SHIFT + 2) * SUB];
+	private volatile long count = 0;
+	private long max = 0;
+	private long sum = 0;
+
+	void record(long nanos){
+		if(nanos < 0){
+			nanos = 0;
+		}
+		counts[bucket(nanos)]++;
+		sum += nanos;
+		if(nanos > max){
+			max = nanos;
+		}
+		count = count + 1; // single writer, the volatile write publishes the rest
+	}
+
+	/**
+	 * @param p  0..1, e.g. 0.99
+	 * @return the upper edge of the bucket holding that percentile, in ns
+	 */
+	long percentile(double p){
+		long n = count;
+		if(n == 0){
+			return 0;
+		}
+		long want = (long) Math.ceil(p*n);
+		if(want < 1){
+			want = 1;
+		}
+		long seen = 0;
+		for(int i=0; i<counts.length; i++){
+			seen += counts[i];
+			if(seen >= want){
+				return Math.min(upperBound(i), max);
+			}
+		}
+		return max;
+	}
+
+	long count(){
+		return count;
+	}
+
+	long max(){
+		return max;
+	}
+
+	long mean(){
+		long n = count;
+		return n == 0 ? 0 : sum/n;
+	}
+
+	void reset(){
+		for(int i=0; i<counts.length; i++){
+			counts[i] = 0;
+		}
+		max = 0;
+		sum = 0;
+		count = 0;
+	}
+
+	/**
+	 * One-line summary in microseconds. Allocates, so only call it when dumping.
+	 */
+	String summary(){
+		return "n=" + count
+				+ " mean=" + mean()/1000 + "us"
+				+ " p50=" + percentile(0.50)/1000 + "us"
+				+ " p99=" + percentile(0.99)/1000 + "us"
+				+ " p999=" + percentile(0.999)/1000 + "us"
+				+ " max=" + max/1000 + "us";
+	}
+
+	static int bucket(long v){
+		if(v < SUB){
+			return (int) v;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		if(shift > MAX_SHIFT){
+			return (MAX_SHIFT + 2) * SUB - 1;
+		}
+		return (shift + 1)*SUB + (int) (v >>> shift) - SUB;
+	}
+
+	static long upperBound(int bucket){
+		if(bucket < SUB){
+			return bucket;
+		}
+		int shift = bucket/SUB - 1;
+		int sub = bucket % SUB;
+		return ((long) (SUB + sub + 1) << shift) - 1;
+	}
+}
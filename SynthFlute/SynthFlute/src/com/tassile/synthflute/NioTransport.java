@@ -0,0 +1,419 @@
+package com.tassile.synthflute;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * TCP transport, for flutes and controllers on Wi-Fi and for loopback tests. Every
+ * peer is served by one thread blocked in a Selector: accepts, connects and reads are
+ * all non-blocking and handled as they become ready, so a thousand idle or stalled
+ * peers cost nothing but their sockets, and none of them can hold up another.
+ *
+ * Bytes are read into one buffer owned by the selector thread and handed to the
+ * listener from there; nothing is allocated per read. A write goes straight to the
+ * socket from the caller's thread when it can; whatever the socket can't take yet is
+ * queued and sent by the selector thread when there is room. A peer that doesn't read
+ * can only hold MAX_PENDING bytes that way; past that its link is dropped.
+ *
+ * Addresses for connect() are "host:port".
+ */
+final class NioTransport implements Transport {
+	static final int READ_SIZE = 4096;
+	static final int MAX_PENDING = 64*1024; // bytes queued for a peer that isn't reading
+
+	private final InetSocketAddress bind;
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_SIZE);
+	private final ConcurrentLinkedQueue<Dial> connecting = new ConcurrentLinkedQueue<Dial>();
+	private final ConcurrentLinkedQueue<Link> changed = new ConcurrentLinkedQueue<Link>();
+	private Selector selector;
+	private ServerSocketChannel server;
+	private Thread thread;
+	private volatile Listener listener;
+	private volatile boolean running = false;
+
+	/**
+	 * @param bind  where to accept peers (port 0 picks a free one), or null to only
+	 *              make outgoing links
+	 */
+	NioTransport(InetSocketAddress bind){
+		this.bind = bind;
+	}
+
+	public synchronized void listen(Listener l) throws IOException {
+		if(running){
+			throw new IllegalStateException("already listening");
+		}
+		listener = l;
+		selector = Selector.open();
+		if(bind != null){
+			server = ServerSocketChannel.open();
+			server.configureBlocking(false);
+			server.socket().setReuseAddress(true);
+			server.socket().bind(bind);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		}
+		running = true;
+		thread = new Thread("NioTransport"){
+			public void run(){
+				loop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * The port peers should connect to, once listening.
+	 */
+	int localPort(){
+		return server == null ? -1 : server.socket().getLocalPort();
+	}
+
+	public void connect(String address) throws IOException {
+		if(!running){
+			throw new IllegalStateException("not listening");
+		}
+		int colon = address.lastIndexOf(':');
+		if(colon < 0){
+			throw new IllegalArgumentException("expected host:port, got " + address);
+		}
+		InetSocketAddress to = new InetSocketAddress(address.substring(0, colon),
+				Integer.parseInt(address.substring(colon + 1)));
+		SocketChannel ch = SocketChannel.open();
+		ch.configureBlocking(false);
+		ch.socket().setTcpNoDelay(true);
+		ch.connect(to);
+		// channels can only be registered from the selector thread without racing it
+		connecting.add(new Dial(ch, address));
+		selector.wakeup();
+	}
+
+	public void close(){
+		running = false;
+		Selector s = selector;
+		if(s != null){
+			s.wakeup();
+		}
+		Thread t = thread;
+		if(t != null && t != Thread.currentThread()){
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void loop(){
+		try {
+			while(running){
+				selector.select();
+				registerPending();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()){
+					SelectionKey k = it.next();
+					it.remove();
+					if(!k.isValid()){
+						continue;
+					}
+					if(k.isAcceptable()){
+						accept();
+					} else if(k.isConnectable()){
+						finishConnect(k);
+					} else {
+						Link c = (Link) k.attachment();
+						if(k.isReadable()){
+							read(c);
+						}
+						if(k.isValid() && k.isWritable()){
+							c.flush();
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			// the selector itself failed, nothing more can be served
+		} finally {
+			shutdown();
+		}
+	}
+
+	private void registerPending(){
+		Dial d;
+		while((d = connecting.poll()) != null){
+			if(d.channel.isConnected()){
+				open(d.channel, null); // a loopback connect can finish at once
+				continue;
+			}
+			try {
+				d.channel.register(selector, SelectionKey.OP_CONNECT, d);
+			} catch (IOException e) {
+				// only this dial is lost, not the selector
+				closeQuietly(d.channel);
+				listener.onConnectFailed(d.address, e);
+			}
+		}
+		Link c;
+		while((c = changed.poll()) != null){
+			if(c.closeRequested){
+				drop(c, c.closeCause);
+			} else if(c.key != null && c.key.isValid()){
+				c.key.interestOps(SelectionKey.OP_READ | (c.hasPending() ? SelectionKey.OP_WRITE : 0));
+			}
+		}
+	}
+
+	private void accept(){
+		while(true){
+			SocketChannel ch;
+			try {
+				ch = server.accept();
+			} catch (IOException e) {
+				return; // nothing more to accept this time round
+			}
+			if(ch == null){
+				return;
+			}
+			try {
+				ch.configureBlocking(false);
+				ch.socket().setTcpNoDelay(true);
+			} catch (IOException e) {
+				// that peer went away again before we got to it
+				closeQuietly(ch);
+				continue;
+			}
+			open(ch, null);
+		}
+	}
+
+	private void finishConnect(SelectionKey k){
+		SocketChannel ch = (SocketChannel) k.channel();
+		try {
+			ch.finishConnect();
+		} catch (IOException e) {
+			k.cancel();
+			closeQuietly(ch);
+			listener.onConnectFailed(((Dial) k.attachment()).address, e);
+			return;
+		}
+		open(ch, k);
+	}
+
+	/**
+	 * Hands a new link to the listener and, if it is taken, starts reading it. Once
+	 * taken, a link that can't be registered is dropped like any other, so the
+	 * listener always hears of it going.
+	 * @param k  the channel's key if it is already registered (from connecting)
+	 */
+	private void open(SocketChannel ch, SelectionKey k){
+		Link c = new Link(ch);
+		if(!listener.onConnected(c)){
+			if(k != null){
+				k.cancel();
+			}
+			closeQuietly(ch);
+			return;
+		}
+		int ops = SelectionKey.OP_READ | (c.hasPending() ? SelectionKey.OP_WRITE : 0);
+		try {
+			if(k == null){
+				c.key = ch.register(selector, ops, c);
+			} else {
+				c.key = k;
+				k.attach(c);
+				k.interestOps(ops);
+			}
+		} catch (IOException e) {
+			drop(c, e); // went before it could be registered
+			return;
+		}
+		if(c.closeRequested){
+			drop(c, c.closeCause);
+		}
+	}
+
+	private void read(Link c){
+		final ByteBuffer b = readBuffer;
+		b.clear();
+		int n;
+		try {
+			n = c.channel.read(b);
+		} catch (IOException e) {
+			drop(c, e);
+			return;
+		}
+		if(n < 0){
+			drop(c, null);
+		} else if(n > 0){
+			listener.onData(c, b.array(), 0, n);
+		}
+	}
+
+	private void drop(Link c, IOException cause){
+		if(c.closed){
+			return;
+		}
+		c.closed = true;
+		if(c.key != null){
+			c.key.cancel();
+		}
+		closeQuietly(c.channel);
+		listener.onDisconnected(c, cause);
+	}
+
+	private void shutdown(){
+		for(SelectionKey k : selector.keys()){
+			Object a = k.attachment();
+			if(a instanceof Link){
+				drop((Link) a, null);
+			} else {
+				closeQuietly(k.channel());
+			}
+		}
+		Dial d;
+		while((d = connecting.poll()) != null){
+			closeQuietly(d.channel);
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// nothing left to do with it
+		}
+	}
+
+	private static void closeQuietly(java.nio.channels.Channel ch){
+		try {
+			ch.close();
+		} catch (IOException e) {
+			// already gone
+		}
+	}
+
+	/**
+	 * An outgoing link on its way up, and what it was asked for as.
+	 */
+	private static final class Dial {
+		final SocketChannel channel;
+		final String address;
+
+		Dial(SocketChannel channel, String address){
+			this.channel = channel;
+			this.address = address;
+		}
+	}
+
+	/**
+	 * One peer. Everything but write() and close() happens on the selector thread.
+	 */
+	private final class Link implements Connection {
+		final SocketChannel channel;
+		final String name;
+		SelectionKey key;
+		boolean closed = false;
+		volatile boolean closeRequested = false;
+		volatile IOException closeCause; // why, if it wasn't asked for
+		private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>(); // guarded by this
+		private int pendingBytes = 0; // guarded by this
+		private Object attachment;
+
+		Link(SocketChannel channel){
+			this.channel = channel;
+			name = String.valueOf(channel.socket().getRemoteSocketAddress());
+		}
+
+		public String name(){
+			return name;
+		}
+
+		public void write(byte[] b) throws IOException {
+			synchronized(this){
+				if(closeRequested || closed){
+					throw new IOException("connection to " + name + " is closed");
+				}
+				int queued;
+				if(pending.isEmpty()){
+					ByteBuffer bb = ByteBuffer.wrap(b);
+					channel.write(bb);
+					if(!bb.hasRemaining()){
+						return;
+					}
+					queued = bb.remaining();
+				} else {
+					queued = b.length;
+				}
+				if(pendingBytes + queued > MAX_PENDING){
+					// not reading: let it go rather than buffer for it forever
+					IOException e = new IOException(name + " isn't reading, over " + MAX_PENDING + " bytes queued");
+					closeCause = e;
+					closeRequested = true;
+					pending.clear();
+					pendingBytes = 0;
+					changed.add(this);
+					selector.wakeup();
+					throw e;
+				}
+				pending.add(ByteBuffer.wrap(b.clone(), b.length - queued, queued));
+				pendingBytes += queued;
+			}
+			// the selector thread adds OP_WRITE and sends the rest when there is room
+			changed.add(this);
+			selector.wakeup();
+		}
+
+		synchronized boolean hasPending(){
+			return !pending.isEmpty();
+		}
+
+		/**
+		 * Sends what is queued, as far as the socket will take it.
+		 */
+		void flush(){
+			boolean more;
+			try {
+				synchronized(this){
+					while(!pending.isEmpty()){
+						ByteBuffer bb = pending.peek();
+						pendingBytes -= channel.write(bb);
+						if(bb.hasRemaining()){
+							break;
+						}
+						pending.poll();
+					}
+					more = !pending.isEmpty();
+				}
+			} catch (IOException e) {
+				drop(this, e);
+				return;
+			}
+			if(!more){
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		public void close(){
+			closeRequested = true;
+			changed.add(this);
+			selector.wakeup();
+		}
+
+		public void attach(Object o){
+			attachment = o;
+		}
+
+		public Object attachment(){
+			return attachment;
+		}
+
+		public String toString(){
+			return name;
+		}
+	}
+}
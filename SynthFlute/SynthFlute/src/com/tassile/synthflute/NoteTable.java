@@ -0,0 +1,49 @@
+package com.tassile.synthflute;
+
+/**
+ * Note index -> pitch, for one sample rate. Each note is kept both in Hz and as a
+ * 32-bit phase increment (the fraction of a cycle per sample, scaled to 2^32), so a
+ * fixed-point oscillator can start a note with a table lookup and no arithmetic.
+ *
+ * Immutable, so one table can be shared by the engine and every voice. Built by
+ * Tuning.table().
+ */
+final class NoteTable {
+	static final double PHASE_ONE = 4294967296.0; // 2^32, one full cycle
+
+	final int sr;
+	private final double[] hz;
+	private final int[] inc;
+
+	/**
+	 * @param hz  frequency of every note; copied
+	 */
+	NoteTable(double[] hz, int sr){
+		this.sr = sr;
+		this.hz = hz.clone();
+		inc = new int[hz.length];
+		for(int i=0; i<hz.length; i++){
+			inc[i] = increment(hz[i], sr);
+		}
+	}
+
+	/**
+	 * The phase increment for hz at sr. Unsigned: anything from sr/2 up comes out
+	 * negative, which the wrapping arithmetic still gets right below sr.
+	 */
+	static int increment(double hz, int sr){
+		return (int) Math.round(hz / sr * PHASE_ONE);
+	}
+
+	int size(){
+		return hz.length;
+	}
+
+	double frequency(int note){
+		return hz[note];
+	}
+
+	int increment(int note){
+		return inc[note];
+	}
+}
@@ -0,0 +1,95 @@
+package com.tassile.synthflute;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throws samples away and counts them. Unpaced it measures how fast the engine can go
+ * on its own; paced it plays them out in real time like a sound card would, which is
+ * enough to drive the render loop in tests without hardware.
+ *
+ * A paced sink can be given a buffer, in which case it behaves like a device with
+ * that much room: write() only blocks once the buffer is full, the playback head
+ * advances with the clock, and if the writer falls behind the head stops at the end
+ * of the data (an underrun, which is counted) and restarts with the next write.
+ */
+class NullSink implements AudioSink {
+	private final int sr;
+	private final boolean paced;
+	private final int buffer;
+	private long frames = 0;
+	private long start; // when frame 0 would have played, moved on by underruns
+	private long underruns = 0;
+
+	NullSink(int sr, boolean paced){
+		this(sr, paced, 0);
+	}
+
+	/**
+	 * A paced sink that queues up to bufferFrames.
+	 */
+	NullSink(int sr, int bufferFrames){
+		this(sr, true, bufferFrames);
+	}
+
+	private NullSink(int sr, boolean paced, int bufferFrames){
+		this.sr = sr;
+		this.paced = paced;
+		this.buffer = bufferFrames;
+	}
+
+	public int sampleRate(){
+		return sr;
+	}
+
+	public void start(){
+		start = System.nanoTime();
+	}
+
+	public int write(short[] buf, int off, int len){
+		if(paced){
+			long now = System.nanoTime();
+			if(frames > 0 && clock(now) > frames){
+				// ran dry: playback resumes from here
+				underruns++;
+				start = now - frames*1000000000L/sr;
+			}
+			frames += len;
+			long due = start + (frames - buffer)*1000000000L/sr;
+			long wait = due - now;
+			if(wait > 0){
+				LockSupport.parkNanos(wait);
+			}
+		} else {
+			frames += len;
+		}
+		return len;
+	}
+
+	private long clock(long now){
+		return (now - start)*sr/1000000000L;
+	}
+
+	public int bufferFrames(){
+		return buffer;
+	}
+
+	public long framesPlayed(){
+		if(!paced){
+			return -1;
+		}
+		long p = clock(System.nanoTime());
+		return p < frames ? p : frames;
+	}
+
+	public void close(){
+	}
+
+	long frames(){
+		return frames;
+	}
+
+	/** Times a paced sink ran out of samples; what a real device would glitch on. */
+	long underrunCount(){
+		return underruns;
+	}
+}
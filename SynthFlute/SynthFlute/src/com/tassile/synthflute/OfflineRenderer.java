@@ -0,0 +1,115 @@
+package com.tassile.synthflute;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders a KeyEventLog to a WAV file (or any AudioSink) as fast as the CPU allows. Each event is
+ * scheduled at its exact sample in the block it falls in, so the output is the same
+ * on every run and on every machine, which makes it usable for golden-file
+ * comparisons.
+ *
+ * An instance holds the engine settings and can be shared between threads; every
+ * render() call builds its own engine.
+ */
+class OfflineRenderer {
+	static final int BLOCK = 256;
+
+	final int sr;
+	int oscType = SynthEngine.OSC_DDS;
+	int voices = 0;      // 0 = MODE_MONO, otherwise MODE_POLY with this many voices
+	Tuning tuning = Tuning.DEFAULT;
+	SampleBank bank;     // for OSC_SAMPLE, put in offline mode
+	float lowpassHz = 0f; // filter cutoff, 0 = no filter
+	int delayMs = 0;     // echo time, 0 = no delay
+	float reverb = 0f;   // reverb wet level, 0 = no reverb
+	float gainDb = 0f;   // master gain, 0 = none
+	long tailMs = 500;   // rendered after the last event, for release tails
+
+	OfflineRenderer(int sr){
+		this.sr = sr;
+	}
+
+	SynthEngine newEngine(){
+		SynthEngine engine = new SynthEngine(sr);
+		if(bank != null){
+			bank.setOffline(true);
+			engine.setSampleBank(bank);
+		}
+		engine.setOscillatorType(oscType);
+		engine.setTuning(tuning);
+		engine.setGraph(graph(sr, lowpassHz, delayMs, reverb, gainDb));
+		if(voices > 0){
+			engine.setPolyphonic(voices);
+		}
+		return engine;
+	}
+
+	/**
+	 * A fresh graph (nodes have state, so one per engine): a low-pass if lowpassHz > 0,
+	 * an echo if delayMs > 0, a reverb if reverb > 0, then a gain if gainDb != 0.
+	 */
+	static DspGraph graph(int sr, float lowpassHz, int delayMs, float reverb, float gainDb){
+		List<DspNode> chain = new ArrayList<DspNode>();
+		if(lowpassHz > 0f){
+			chain.add(new Filter(sr, Filter.LOWPASS, lowpassHz, 0.707f));
+		}
+		if(delayMs > 0){
+			Delay d = new Delay(sr, delayMs);
+			d.setTime(delayMs);
+			chain.add(d);
+		}
+		if(reverb > 0f){
+			Reverb r = new Reverb(sr);
+			r.setMix(reverb, 1f);
+			chain.add(r);
+		}
+		if(gainDb != 0f){
+			Gain g = new Gain(1f);
+			g.setDecibels(gainDb);
+			g.reset();
+			chain.add(g);
+		}
+		return new DspGraph(chain.toArray(new DspNode[chain.size()]));
+	}
+
+	/**
+	 * @return the number of frames written
+	 */
+	long render(KeyEventLog log, File wav) throws IOException {
+		WavFileSink out = new WavFileSink(wav, sr);
+		try {
+			render(log, newEngine(), out);
+		} finally {
+			out.close();
+		}
+		return out.frames();
+	}
+
+	void render(KeyEventLog log, SynthEngine engine, AudioSink out) throws IOException {
+		out.start();
+		long total = frameOf(log.duration()) + tailMs*sr/1000;
+		short[] samples = new short[BLOCK];
+		int next = 0;
+		for(long pos=0; pos<total; pos+=BLOCK){
+			int len = (int) Math.min(BLOCK, total - pos);
+			long end = pos + len;
+			while(next < log.count){
+				long at = frameOf(log.times[next]);
+				if(at >= end){
+					break;
+				}
+				engine.schedule(log.masks[next], (int) (at - pos));
+				next++;
+			}
+			engine.render(samples, 0, len);
+			out.write(samples, 0, len);
+		}
+	}
+
+	long frameOf(long timeNs){
+		return timeNs*sr/1000000000L;
+	}
+}
@@ -0,0 +1,23 @@
+package com.tassile.synthflute;
+
+/**
+ * A single running oscillator. The frequency is set once per block and then a whole
+ * block is rendered at a time, so implementations keep their state (phase etc.) in
+ * fields and must not allocate in render().
+ */
+interface Oscillator {
+	void setFrequency(double hz);
+
+	/**
+	 * Sets the frequency to a note from the table. Oscillators that run on phase
+	 * increments take them from the table instead of working them out.
+	 */
+	void setNote(NoteTable notes, int index);
+
+	/**
+	 * Adds len samples, scaled by amp, into buf starting at off.
+	 */
+	void render(float[] buf, int off, int len, float amp);
+
+	void reset();
+}
@@ -0,0 +1,83 @@
+package com.tassile.synthflute;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of decoded sample regions, bounded by bytes rather than
+ * entries. Not thread safe: only SampleBank's streamer (or an offline render, under
+ * the bank's lock) touches it, never the audio thread.
+ *
+ * A region dropped from the cache may still be playing in a voice that holds it;
+ * it's freed by the GC once the voice moves on, so the bound is on what the cache
+ * keeps, plus at most one region per playing voice.
+ */
+class RegionCache {
+	private final long budget;
+	private final LinkedHashMap<Long, SampleBank.Region> map =
+			new LinkedHashMap<Long, SampleBank.Region>(64, 0.75f, true); // access order
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	RegionCache(long budgetBytes){
+		budget = budgetBytes;
+	}
+
+	/**
+	 * @return the region, now most recently used, or null
+	 */
+	SampleBank.Region get(long key){
+		SampleBank.Region r = map.get(key);
+		if(r != null){
+			hits++;
+		} else {
+			misses++;
+		}
+		return r;
+	}
+
+	void put(SampleBank.Region r){
+		SampleBank.Region old = map.put(r.key, r);
+		if(old != null){
+			bytes -= old.bytes();
+		}
+		bytes += r.bytes();
+		Iterator<Map.Entry<Long, SampleBank.Region>> it = map.entrySet().iterator();
+		while(bytes > budget && it.hasNext()){
+			SampleBank.Region e = it.next().getValue();
+			if(e == r){
+				break; // never evict what was just asked for
+			}
+			it.remove();
+			bytes -= e.bytes();
+			evictions++;
+		}
+	}
+
+	long bytes(){
+		return bytes;
+	}
+
+	long budget(){
+		return budget;
+	}
+
+	int size(){
+		return map.size();
+	}
+
+	long hits(){
+		return hits;
+	}
+
+	long misses(){
+		return misses;
+	}
+
+	long evictions(){
+		return evictions;
+	}
+}
@@ -0,0 +1,145 @@
+package com.tassile.synthflute;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Render side of a connection. The input thread only decodes and queues key events;
+ * this thread applies whatever has arrived at the start of every block (see
+ * EventRenderer), renders one small block and writes it to the sink. A key change
+ * therefore waits for at most one block instead of a whole hardware buffer, and input
+ * never waits on the output.
+ *
+ * If the sink reports its playback position, a BufferController keeps it filled to
+ * a target instead of letting it fill up, counts underruns, and grows or shrinks the
+ * target as the device copes.
+ *
+ * The per-block work itself is a BlockRenderer: one flute's EventRenderer, or a Hub
+ * mixing several. This thread owns the engines' voice workers
+ * (SynthEngine.setRenderThreads()) and stops them when it ends.
+ */
+class RenderThread extends Thread {
+	static final int BLOCK = 256; // frames rendered per pass, unless given
+
+	private final int block;
+	private final int target; // frames to keep queued, 0 for all the sink holds
+	private final BlockRenderer renderer;
+	private final AudioSink sink;
+	private volatile BufferController control;
+	private volatile boolean isRunning = true;
+	private volatile IOException error;
+
+	RenderThread(SynthEngine engine, EventQueue queue, AudioSink sink){
+		this(engine, queue, sink, BLOCK, 0);
+	}
+
+	/**
+	 * @param latency  block size and starting buffer; the sink should be able to hold
+	 *                 LatencyConfig.maxBufferFrames() so there is room to grow
+	 */
+	RenderThread(SynthEngine engine, EventQueue queue, AudioSink sink, LatencyConfig latency){
+		this(engine, queue, sink, latency.blockFrames, latency.bufferFrames);
+	}
+
+	private RenderThread(SynthEngine engine, EventQueue queue, AudioSink sink, int block, int target){
+		this(new EventRenderer(engine, queue, block), sink, target);
+	}
+
+	/**
+	 * @param renderer  e.g. a Hub; its block size is the one written to the sink
+	 * @param target    frames to keep queued, 0 for all the sink holds
+	 */
+	RenderThread(BlockRenderer renderer, AudioSink sink, int target){
+		this.renderer = renderer;
+		this.sink = sink;
+		this.block = renderer.blockSize();
+		this.target = target;
+		setName("RenderThread");
+	}
+
+	/**
+	 * Turns input-to-output latency tracing on or off. Call before start().
+	 */
+	void setTracing(boolean on){
+		renderer.setLatencyHistogram(on ? new LatencyHistogram() : null);
+	}
+
+	/**
+	 * @return the latency histogram, or null if tracing is off
+	 */
+	LatencyHistogram getLatency(){
+		return renderer.getLatencyHistogram();
+	}
+
+	public void run(){
+		setPriority(Thread.MAX_PRIORITY);
+
+		short samples[] = new short[block];
+		try {
+			sink.start();
+			BufferController c = null;
+			int capacity = sink.bufferFrames();
+			if(capacity >= block && sink.framesPlayed() >= 0){
+				int t = target > 0 ? Math.min(target, capacity) : capacity;
+				c = control = new BufferController(sink.sampleRate(), block, Math.max(t, block), capacity);
+			}
+			long written = 0;
+			while(isRunning){
+				long played = 0;
+				if(c != null){
+					long wait = c.waitNanos(written, sink.framesPlayed());
+					if(wait > 0){
+						LockSupport.parkNanos(wait);
+					}
+				}
+				long t0 = System.nanoTime();
+				renderer.render(samples, t0);
+				long t1 = System.nanoTime();
+				renderer.delivered(t1);
+				if(c != null){
+					played = sink.framesPlayed();
+					c.beforeWrite(t1, t1 - t0, written, played);
+				}
+				sink.write(samples, 0, block);
+				written += block;
+				if(c != null){
+					c.afterWrite(System.nanoTime(), written, played);
+				}
+			}
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			renderer.finish();
+			try {
+				sink.close();
+			} catch (IOException e) {
+				if(error == null){
+					error = e;
+				}
+			}
+		}
+	}
+
+	int blockSize(){
+		return block;
+	}
+
+	/**
+	 * @return buffer size, underrun count and render load, or null if the sink has
+	 *         no playback clock (or the thread hasn't started it yet)
+	 */
+	BufferController getBufferControl(){
+		return control;
+	}
+
+	void halt(){
+		isRunning = false;
+	}
+
+	/**
+	 * @return what stopped the thread, if it was the sink failing
+	 */
+	IOException getError(){
+		return error;
+	}
+}
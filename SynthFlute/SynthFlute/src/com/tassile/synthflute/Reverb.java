@@ -0,0 +1,150 @@
+package com.tassile.synthflute;
+
+import java.util.Arrays;
+
+/**
+ * Freeverb-style reverb, mono: eight damped feedback comb filters in parallel into
+ * four allpass filters in series, with the classic tunings scaled to the sample rate.
+ * Every filter is a float ring buffer allocated here, and each one runs over the whole
+ * block in its own loop, so the cost per block is fixed and known (see the fx/
+ * benchmarks).
+ *
+ * The scratch buffers are sized for the largest block when it is built; a longer
+ * block is processed a scratch-full at a time, so process() never allocates.
+ *
+ * setDecay() is the room size (how long the tail rings), setDamping() how fast the
+ * highs die away in it.
+ */
+class Reverb implements DspNode {
+	private static final int[] COMBS = { 1116, 1188, 1277, 1356, 1422, 1491, 1557, 1617 };
+	private static final int[] ALLPASSES = { 556, 441, 341, 225 };
+	private static final float ALLPASS_FEEDBACK = 0.5f;
+	private static final float INPUT_GAIN = 0.015f; // eight combs add up
+	private static final float WET_GAIN = 3f;
+	private static final float ANTI_DENORMAL = 1e-18f;
+	static final int MAX_BLOCK = 1024; // the biggest LatencyConfig block
+
+	private final float[][] comb = new float[COMBS.length][];
+	private final int[] combPos = new int[COMBS.length];
+	private final float[] combStore = new float[COMBS.length];
+	private final float[][] allpass = new float[ALLPASSES.length][];
+	private final int[] allpassPos = new int[ALLPASSES.length];
+	private final float[] in;
+	private final float[] out;
+
+	private volatile float feedback;
+	private volatile float damping;
+	private volatile float wet = 0.25f;
+	private volatile float dry = 1f;
+
+	Reverb(int sr){
+		this(sr, MAX_BLOCK);
+	}
+
+	/**
+	 * @param maxBlock  the longest block process() does in one pass
+	 */
+	Reverb(int sr, int maxBlock){
+		if(maxBlock < 1){
+			throw new IllegalArgumentException("block of " + maxBlock);
+		}
+		in = new float[maxBlock];
+		out = new float[maxBlock];
+		for(int i=0; i<COMBS.length; i++){
+			comb[i] = new float[Math.max(1, COMBS[i]*sr/44100)];
+		}
+		for(int i=0; i<ALLPASSES.length; i++){
+			allpass[i] = new float[Math.max(1, ALLPASSES[i]*sr/44100)];
+		}
+		setDecay(0.5f);
+		setDamping(0.5f);
+	}
+
+	/**
+	 * @param room  0..1, from a small room to a long hall
+	 */
+	void setDecay(float room){
+		room = Math.max(0f, Math.min(room, 1f));
+		feedback = 0.7f + 0.28f*room;
+	}
+
+	/**
+	 * @param d  0..1, 0 keeps the tail bright
+	 */
+	void setDamping(float d){
+		damping = 0.4f*Math.max(0f, Math.min(d, 1f));
+	}
+
+	void setMix(float wet, float dry){
+		this.wet = wet;
+		this.dry = dry;
+	}
+
+	public void process(float[] buf, int off, int len){
+		final int max = in.length;
+		while(len > max){
+			processChunk(buf, off, max);
+			off += max;
+			len -= max;
+		}
+		processChunk(buf, off, len);
+	}
+
+	private void processChunk(float[] buf, int off, int len){
+		final float[] x = in, y = out;
+		for(int i=0; i<len; i++){
+			x[i] = buf[off+i]*INPUT_GAIN + ANTI_DENORMAL;
+			y[i] = 0f;
+		}
+
+		final float fb = feedback, damp1 = damping, damp2 = 1f - damping;
+		for(int c=0; c<comb.length; c++){
+			final float[] b = comb[c];
+			final int n = b.length;
+			int p = combPos[c];
+			float store = combStore[c];
+			for(int i=0; i<len; i++){
+				float o = b[p];
+				store = o*damp2 + store*damp1;
+				b[p] = x[i] + store*fb;
+				if(++p == n){
+					p = 0;
+				}
+				y[i] += o;
+			}
+			combPos[c] = p;
+			combStore[c] = store;
+		}
+
+		for(int a=0; a<allpass.length; a++){
+			final float[] b = allpass[a];
+			final int n = b.length;
+			int p = allpassPos[a];
+			for(int i=0; i<len; i++){
+				float bo = b[p];
+				float v = y[i];
+				b[p] = v + bo*ALLPASS_FEEDBACK;
+				if(++p == n){
+					p = 0;
+				}
+				y[i] = bo - v;
+			}
+			allpassPos[a] = p;
+		}
+
+		final float w = wet*WET_GAIN, d = dry;
+		for(int i=0; i<len; i++){
+			buf[off+i] = buf[off+i]*d + y[i]*w;
+		}
+	}
+
+	public void reset(){
+		for(int c=0; c<comb.length; c++){
+			Arrays.fill(comb[c], 0f);
+			combStore[c] = 0f;
+		}
+		for(int a=0; a<allpass.length; a++){
+			Arrays.fill(allpass[a], 0f);
+		}
+	}
+}
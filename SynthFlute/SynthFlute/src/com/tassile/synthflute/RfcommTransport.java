@@ -0,0 +1,257 @@
+package com.tassile.synthflute;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+/**
+ * Bluetooth RFCOMM transport, the flute's own link and what BTService listens on by
+ * default. It listens on a secure and an insecure server socket, and can dial out to
+ * a paired device.
+ *
+ * Bluetooth sockets only have blocking streams, so every link is read on a thread of
+ * its own; a link that stalls only blocks its own thread. Addresses for connect() are
+ * Bluetooth MAC addresses.
+ */
+class RfcommTransport implements Transport {
+	private static final String TAG = "RfcommTransport";
+	static final int READ_SIZE = 64; // bytes per read(), frames are 4 to 6 bytes
+
+	private final BluetoothAdapter adapter;
+	private final String secureName;
+	private final UUID secureUuid;
+	private final String insecureName;
+	private final UUID insecureUuid;
+	private final CopyOnWriteArrayList<Link> links = new CopyOnWriteArrayList<Link>();
+	private volatile Listener listener;
+	private AcceptThread secureAccept;
+	private AcceptThread insecureAccept;
+	private BluetoothSocket dialing; // the dial in progress, guarded by this
+	private boolean closed = false; // guarded by this
+
+	RfcommTransport(BluetoothAdapter adapter, String secureName, UUID secureUuid,
+			String insecureName, UUID insecureUuid){
+		this.adapter = adapter;
+		this.secureName = secureName;
+		this.secureUuid = secureUuid;
+		this.insecureName = insecureName;
+		this.insecureUuid = insecureUuid;
+	}
+
+	public synchronized void listen(Listener l) throws IOException {
+		listener = l;
+		closed = false;
+		secureAccept = new AcceptThread(adapter.listenUsingRfcommWithServiceRecord(secureName, secureUuid), "Secure");
+		insecureAccept = new AcceptThread(adapter.listenUsingInsecureRfcommWithServiceRecord(insecureName, insecureUuid), "Insecure");
+		secureAccept.start();
+		insecureAccept.start();
+	}
+
+	public void connect(String address) throws IOException {
+		connect(adapter.getRemoteDevice(address), true);
+	}
+
+	/**
+	 * Dials a device in the background; the link is reported like an accepted one, a
+	 * failure to onConnectFailed() with the device's address. Only one dial runs at a
+	 * time: a new one, or close(), cancels the one in progress without a word.
+	 */
+	synchronized void connect(final BluetoothDevice device, boolean secure) throws IOException {
+		if(closed){
+			throw new IOException("transport is closed");
+		}
+		final BluetoothSocket socket = secure ? device.createRfcommSocketToServiceRecord(secureUuid)
+				: device.createInsecureRfcommSocketToServiceRecord(insecureUuid);
+		if(dialing != null){
+			closeQuietly(dialing);
+		}
+		dialing = socket;
+		new Thread("RfcommConnect " + device.getAddress()){
+			public void run(){
+				// Always cancel discovery because it will slow down a connection
+				adapter.cancelDiscovery();
+				IOException failed = null;
+				try {
+					socket.connect();
+				} catch (IOException e) {
+					failed = e;
+				}
+				synchronized(RfcommTransport.this){
+					if(dialing != socket){
+						// cancelled: closed, or another dial took over
+						closeQuietly(socket);
+						return;
+					}
+					dialing = null;
+				}
+				if(failed != null){
+					Log.e(TAG, "connect to " + device.getAddress() + " failed", failed);
+					closeQuietly(socket);
+					listener.onConnectFailed(device.getAddress(), failed);
+					return;
+				}
+				open(socket);
+			}
+		}.start();
+	}
+
+	public synchronized void close(){
+		closed = true;
+		if(dialing != null){
+			closeQuietly(dialing);
+			dialing = null;
+		}
+		if(secureAccept != null){
+			secureAccept.cancel();
+			secureAccept = null;
+		}
+		if(insecureAccept != null){
+			insecureAccept.cancel();
+			insecureAccept = null;
+		}
+		for(Link c : links){
+			c.close();
+		}
+	}
+
+	private void open(BluetoothSocket socket){
+		Link c;
+		try {
+			c = new Link(socket);
+		} catch (IOException e) {
+			Log.e(TAG, "streams not available", e);
+			closeQuietly(socket);
+			return;
+		}
+		// in links before the listener hears of it, so a close() from here on drops it
+		synchronized(this){
+			if(closed){
+				closeQuietly(socket);
+				return;
+			}
+			links.add(c);
+		}
+		if(!listener.onConnected(c)){
+			links.remove(c);
+			closeQuietly(socket);
+			return;
+		}
+		c.start();
+	}
+
+	private static void closeQuietly(BluetoothSocket socket){
+		try {
+			socket.close();
+		} catch (IOException e) {
+			Log.e(TAG, "close() of socket failed", e);
+		}
+	}
+
+	/**
+	 * Accepts links until cancelled.
+	 */
+	private class AcceptThread extends Thread {
+		private final BluetoothServerSocket server;
+
+		AcceptThread(BluetoothServerSocket server, String type){
+			super("RfcommAccept" + type);
+			this.server = server;
+		}
+
+		public void run(){
+			while(true){
+				BluetoothSocket socket;
+				try {
+					socket = server.accept();
+				} catch (IOException e) {
+					// closed by cancel(), or the adapter went away
+					break;
+				}
+				if(socket != null){
+					open(socket);
+				}
+			}
+		}
+
+		void cancel(){
+			try {
+				server.close();
+			} catch (IOException e) {
+				Log.e(TAG, "close() of server failed", e);
+			}
+		}
+	}
+
+	/**
+	 * One link and the thread that reads it.
+	 */
+	private class Link extends Thread implements Connection {
+		private final BluetoothSocket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		private final String name;
+		private volatile boolean closed = false;
+		private Object attachment;
+
+		Link(BluetoothSocket socket) throws IOException {
+			this.socket = socket;
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+			BluetoothDevice d = socket.getRemoteDevice();
+			String n = d.getName();
+			name = n != null ? n : d.getAddress();
+			setName("RfcommLink " + name);
+		}
+
+		public void run(){
+			byte[] buffer = new byte[READ_SIZE];
+			IOException cause = null;
+			try {
+				while(true){
+					// blocks this link's thread only
+					int bytes = in.read(buffer);
+					if(bytes < 0){
+						break;
+					}
+					listener.onData(this, buffer, 0, bytes);
+				}
+			} catch (IOException e) {
+				if(!closed){
+					cause = e;
+				}
+			}
+			links.remove(this);
+			closeQuietly(socket);
+			listener.onDisconnected(this, cause);
+		}
+
+		public String name(){
+			return name;
+		}
+
+		public void write(byte[] b) throws IOException {
+			out.write(b);
+		}
+
+		public void close(){
+			closed = true;
+			closeQuietly(socket);
+		}
+
+		public void attach(Object o){
+			attachment = o;
+		}
+
+		public Object attachment(){
+			return attachment;
+		}
+	}
+}
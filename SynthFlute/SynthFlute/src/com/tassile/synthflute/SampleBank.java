@@ -0,0 +1,391 @@
+package com.tassile.synthflute;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A bank of recorded samples (16-bit mono WAV files, one per root note) for
+ * SampleOscillator. Each file is memory-mapped, and every note plays the sample with
+ * the nearest root, pitched to fit.
+ *
+ * Sample data is handed to the audio thread in fixed-size regions of decoded shorts:
+ *
+ * - The first ATTACK_REGIONS of every sample are decoded when the bank is opened and
+ *   kept, so a note can always start straight away.
+ * - Everything after that is decoded on demand by a streamer thread: a playing voice
+ *   asks for the region after the one it's in, and the streamer looks it up in a
+ *   RegionCache, or reads it from the mapping (this is where page faults, i.e. disk
+ *   reads, happen) and caches it.
+ *
+ * The audio thread only ever reads from regions on the heap, never from the mapped
+ * files, and never allocates or waits; if a region isn't there in time the voice goes
+ * quiet until it is (counted in starvedCount()).
+ *
+ * The budget covers the attack regions plus the cache. Opening a bank whose attacks
+ * alone don't fit fails.
+ *
+ * Files are named <anything>_<root>.wav, root being the engine's note index
+ * (SynthEngine.A_OFF is A = 440 Hz). A loop in a 'smpl' chunk is honoured, which is
+ * how a held note sustains beyond the length of the recording.
+ */
+class SampleBank {
+	static final int REGION_FRAMES = 8192;  // ~190 ms at 44.1k
+	static final int ATTACK_REGIONS = 1;
+	static final long DEFAULT_BUDGET = 16L << 20; // bytes, fits comfortably on a phone
+	static final long POLL_NANOS = 2000000L; // streamer wakes at least this often
+
+	private static final Pattern NAME = Pattern.compile(".*_(\\d+)\\.wav", Pattern.CASE_INSENSITIVE);
+
+	/** One sample file. */
+	static final class Sample {
+		final int id;
+		final String name;
+		final int root;
+		final double rootHz;
+		final int sr;
+		final int frames;
+		final int loopStart; // frame
+		final int loopEnd;   // frame after the last one in the loop, 0 if not looped
+		final ShortBuffer pcm; // the mapped data chunk
+		final Region[] attack;
+
+		Sample(int id, String name, int root, int sr, ShortBuffer pcm, int loopStart, int loopEnd){
+			this.id = id;
+			this.name = name;
+			this.root = root;
+			this.rootHz = Tuning.DEFAULT.frequency(root);
+			this.sr = sr;
+			this.pcm = pcm;
+			this.frames = pcm.limit();
+			this.loopStart = loopStart;
+			this.loopEnd = loopEnd;
+			int regions = (frames + REGION_FRAMES - 1) / REGION_FRAMES;
+			attack = new Region[Math.min(ATTACK_REGIONS, regions)];
+		}
+
+		boolean looped(){
+			return loopEnd > 0;
+		}
+	}
+
+	/** A decoded stretch of a sample; immutable once handed out. */
+	static final class Region {
+		final long key;
+		final int index;
+		final int start;  // first frame
+		final int frames;
+		final short[] data; // frames + 1, the extra one for interpolating past the end
+
+		Region(long key, int index, int start, int frames, short[] data){
+			this.key = key;
+			this.index = index;
+			this.start = start;
+			this.frames = frames;
+			this.data = data;
+		}
+
+		long bytes(){
+			return 2L*data.length;
+		}
+	}
+
+	private final Sample[] samples;
+	private final int[] zones = new int[SynthEngine.NUM_NOTES]; // note -> sample id
+	private final RegionCache cache;
+	private final long pinnedBytes;
+	private final CopyOnWriteArrayList<WeakReference<SampleOscillator>> voices =
+			new CopyOnWriteArrayList<WeakReference<SampleOscillator>>();
+	private volatile Thread streamer;
+	private volatile boolean offline = false;
+
+	private SampleBank(Sample[] samples, long budgetBytes){
+		this.samples = samples;
+		long pinned = 0;
+		for(int i=0; i<samples.length; i++){
+			Sample s = samples[i];
+			for(int r=0; r<s.attack.length; r++){
+				s.attack[r] = decode(s, r);
+				pinned += s.attack[r].bytes();
+			}
+		}
+		if(pinned > budgetBytes){
+			throw new IllegalArgumentException("attacks need " + pinned + " bytes, budget is " + budgetBytes);
+		}
+		pinnedBytes = pinned;
+		cache = new RegionCache(budgetBytes - pinned);
+
+		// nearest root for every note, lower one on a tie
+		for(int n=0; n<zones.length; n++){
+			int best = 0;
+			for(int i=1; i<samples.length; i++){
+				if(Math.abs(samples[i].root - n) < Math.abs(samples[best].root - n)){
+					best = i;
+				}
+			}
+			zones[n] = best;
+		}
+	}
+
+	/**
+	 * Maps every *_<root>.wav in dir. The streamer isn't running yet, see start().
+	 */
+	static SampleBank open(File dir, long budgetBytes) throws IOException {
+		File[] files = dir.listFiles();
+		if(files == null){
+			throw new IOException("can't list " + dir);
+		}
+		Arrays.sort(files);
+		List<Sample> list = new ArrayList<Sample>();
+		for(int i=0; i<files.length; i++){
+			Matcher m = NAME.matcher(files[i].getName());
+			if(m.matches()){
+				int root = Integer.parseInt(m.group(1));
+				if(root >= SynthEngine.NUM_NOTES){
+					throw new IOException(files[i] + ": root note " + root + " is past the top of the table");
+				}
+				list.add(map(files[i], list.size(), root));
+			}
+		}
+		if(list.isEmpty()){
+			throw new IOException("no *_<note>.wav samples in " + dir);
+		}
+		try {
+			return new SampleBank(list.toArray(new Sample[list.size()]), budgetBytes);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(dir + ": " + e.getMessage());
+		}
+	}
+
+	private static Sample map(File f, int id, int root) throws IOException {
+		MappedByteBuffer buf;
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			// the mapping stays valid after the channel is closed
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		if(buf.limit() < 12 || buf.getInt(0) != 0x46464952 || buf.getInt(8) != 0x45564157){ // "RIFF", "WAVE"
+			throw new IOException(f + ": not a WAV file");
+		}
+		int sr = 0;
+		int dataOff = -1;
+		int dataLen = 0;
+		int loopStart = 0;
+		int loopEnd = 0;
+		int pos = 12;
+		while(pos + 8 <= buf.limit()){
+			int id4 = buf.getInt(pos);
+			int len = buf.getInt(pos + 4);
+			int body = pos + 8;
+			if(len < 0 || body + len > buf.limit()){
+				len = buf.limit() - body; // truncated, take what there is
+			}
+			if(id4 == 0x20746d66){ // "fmt "
+				int format = buf.getShort(body) & 0xFFFF;
+				int channels = buf.getShort(body + 2) & 0xFFFF;
+				int bits = buf.getShort(body + 14) & 0xFFFF;
+				if(format != 1 || channels != 1 || bits != 16){
+					throw new IOException(f + ": need 16-bit mono PCM, got format " + format + ", "
+							+ channels + " channels, " + bits + " bits");
+				}
+				sr = buf.getInt(body + 4);
+			} else if(id4 == 0x61746164){ // "data"
+				dataOff = body;
+				dataLen = len;
+			} else if(id4 == 0x6c706d73 && len >= 60 && buf.getInt(body + 28) > 0){ // "smpl" with a loop
+				loopStart = buf.getInt(body + 36 + 8);
+				loopEnd = buf.getInt(body + 36 + 12) + 1; // stored inclusive
+			}
+			pos = body + len + (len & 1);
+		}
+		if(sr <= 0 || dataOff < 0){
+			throw new IOException(f + ": missing fmt or data chunk");
+		}
+		buf.position(dataOff);
+		buf.limit(dataOff + (dataLen & ~1));
+		ShortBuffer pcm = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+		if(loopEnd > pcm.limit() || loopStart < 0 || loopStart >= loopEnd){
+			loopStart = loopEnd = 0;
+		}
+		return new Sample(id, f.getName(), root, sr, pcm, loopStart, loopEnd);
+	}
+
+	static long key(Sample s, int index){
+		return ((long) s.id << 32) | index;
+	}
+
+	/**
+	 * Reads region index of s out of the mapping. Touches the file, so never call this
+	 * on the audio thread.
+	 */
+	private static Region decode(Sample s, int index){
+		int start = index*REGION_FRAMES;
+		int frames = Math.min(REGION_FRAMES, s.frames - start);
+		short[] d = new short[frames + 1];
+		ShortBuffer pcm = s.pcm;
+		for(int i=0; i<frames; i++){
+			d[i] = pcm.get(start + i);
+		}
+		d[frames] = start + frames < s.frames ? pcm.get(start + frames) : 0;
+		if(s.looped() && s.loopEnd > start && s.loopEnd <= start + frames){
+			// played looped, the frame after the loop's end is its start
+			d[s.loopEnd - start] = pcm.get(s.loopStart);
+		}
+		return new Region(key(s, index), index, start, frames, d);
+	}
+
+	/**
+	 * The region for key, from the attacks, the cache, or the file.
+	 */
+	synchronized Region region(long key){
+		Sample s = samples[(int) (key >>> 32)];
+		int index = (int) key;
+		if(index < s.attack.length){
+			return s.attack[index];
+		}
+		Region r = cache.get(key);
+		if(r == null){
+			r = decode(s, index);
+			cache.put(r);
+		}
+		return r;
+	}
+
+	Sample zone(int note){
+		return samples[zones[note]];
+	}
+
+	/**
+	 * The sample whose root is closest in pitch to hz.
+	 */
+	Sample zone(double hz){
+		Sample best = samples[0];
+		for(int i=1; i<samples.length; i++){
+			if(Math.abs(Math.log(samples[i].rootHz / hz)) < Math.abs(Math.log(best.rootHz / hz))){
+				best = samples[i];
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * A voice playing from this bank. The streamer keeps track of it until it is
+	 * garbage collected.
+	 */
+	SampleOscillator newOscillator(int sr){
+		SampleOscillator o = new SampleOscillator(this, sr);
+		voices.add(new WeakReference<SampleOscillator>(o));
+		return o;
+	}
+
+	/**
+	 * When rendering offline there is no deadline, so voices that need a region just
+	 * fetch it themselves (under the bank's lock) instead of going without.
+	 */
+	void setOffline(boolean on){
+		offline = on;
+	}
+
+	boolean isOffline(){
+		return offline;
+	}
+
+	/**
+	 * Starts the streamer thread. Not needed for offline rendering.
+	 */
+	synchronized void start(){
+		if(streamer != null){
+			return;
+		}
+		Thread t = new Thread("SampleStreamer"){
+			public void run(){
+				stream(this);
+			}
+		};
+		t.setDaemon(true);
+		streamer = t;
+		t.start();
+	}
+
+	void close(){
+		Thread t = streamer;
+		streamer = null;
+		if(t != null){
+			LockSupport.unpark(t);
+		}
+	}
+
+	private void stream(Thread self){
+		while(streamer == self){
+			for(WeakReference<SampleOscillator> ref : voices){
+				SampleOscillator o = ref.get();
+				if(o == null){
+					voices.remove(ref);
+					continue;
+				}
+				long want = o.request;
+				if(want < 0){
+					continue;
+				}
+				Region n = o.next;
+				if(n == null || n.key != want){
+					o.next = region(want);
+				}
+			}
+			LockSupport.parkNanos(POLL_NANOS);
+		}
+	}
+
+	/**
+	 * Gets the streamer going on a new request instead of at its next poll. Doesn't
+	 * allocate or block, so the audio thread can call it.
+	 */
+	void wake(){
+		Thread t = streamer;
+		if(t != null){
+			LockSupport.unpark(t);
+		}
+	}
+
+	int size(){
+		return samples.length;
+	}
+
+	long pinnedBytes(){
+		return pinnedBytes;
+	}
+
+	/** Times a voice had to go quiet because its next region wasn't decoded yet. */
+	long starvedCount(){
+		long n = 0;
+		for(WeakReference<SampleOscillator> ref : voices){
+			SampleOscillator o = ref.get();
+			if(o != null){
+				n += o.starved;
+			}
+		}
+		return n;
+	}
+
+	public synchronized String toString(){
+		return samples.length + " samples, attacks " + (pinnedBytes >> 10) + " KB, cache "
+				+ (cache.bytes() >> 10) + "/" + (cache.budget() >> 10) + " KB in " + cache.size()
+				+ " regions, " + cache.hits() + " hits " + cache.misses() + " misses "
+				+ cache.evictions() + " evictions, starved " + starvedCount();
+	}
+}
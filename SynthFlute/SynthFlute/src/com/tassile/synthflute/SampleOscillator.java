@@ -0,0 +1,168 @@
+package com.tassile.synthflute;
+
+/**
+ * Plays a note from a SampleBank: picks the zone (sample) for the note, resamples it
+ * to the note's pitch with linear interpolation, and runs through it region by region,
+ * looping if the sample has a loop. See SampleBank for where regions come from.
+ *
+ * The position is 32.32 fixed point in frames of the sample. Changing note within the
+ * same zone only changes the pitch, so a held sound slides rather than restarting;
+ * moving to another zone, or reset(), starts the new sample from its attack.
+ *
+ * render() runs a tight loop up to the next region (or loop) boundary, then switches
+ * region with a couple of field reads. Nothing here allocates or touches the files.
+ */
+class SampleOscillator implements Oscillator {
+	private static final float SCALE = 1f / 32768f;
+	private static final float FRAC_SCALE = 1f / (1 << 24);
+
+	private final SampleBank bank;
+	private final int sr;
+
+	private SampleBank.Sample sample;
+	private SampleBank.Region cur;   // null when played out, or before the first note
+	private boolean waiting = false; // cur's successor wasn't there in time
+	private long pos = 0;  // 32.32 frames
+	private long rate = 0; // 32.32 frames per output sample
+
+	volatile long request = -1;        // key of the region wanted next, for the streamer
+	volatile SampleBank.Region next;   // filled in by the streamer
+	volatile long starved = 0;
+
+	SampleOscillator(SampleBank bank, int sr){
+		this.bank = bank;
+		this.sr = sr;
+	}
+
+	public void setFrequency(double hz){
+		tune(bank.zone(hz), hz);
+	}
+
+	public void setNote(NoteTable notes, int index){
+		tune(bank.zone(index), notes.frequency(index));
+	}
+
+	private void tune(SampleBank.Sample s, double hz){
+		if(s != sample){
+			sample = s;
+			trigger();
+		}
+		rate = (long) (hz / s.rootHz * s.sr / sr * NoteTable.PHASE_ONE);
+	}
+
+	private void trigger(){
+		pos = 0;
+		waiting = false;
+		enter(sample.attack[0]);
+	}
+
+	public void reset(){
+		if(sample != null){
+			trigger();
+		}
+	}
+
+	public void render(float[] buf, int off, int len, float amp){
+		if(waiting && !advance()){
+			return;
+		}
+		final float a = amp*SCALE;
+		final long step = rate;
+		int i = off;
+		int end = off + len;
+		while(i < end && cur != null && step > 0){
+			SampleBank.Region r = cur;
+			int limit = r.start + r.frames;
+			if(sample.looped() && sample.loopEnd > r.start && sample.loopEnd < limit){
+				limit = sample.loopEnd;
+			}
+			long remain = ((long) limit << 32) - pos;
+			int n = (int) Math.min(end - i, (remain + step - 1) / step);
+
+			final short[] d = r.data;
+			final int base = r.start;
+			long p = pos;
+			for(int k=i; k<i+n; k++){
+				int idx = (int) (p >>> 32) - base;
+				float frac = ((int) p >>> 8) * FRAC_SCALE;
+				float s0 = d[idx];
+				buf[k] += a*(s0 + frac*(d[idx+1] - s0));
+				p += step;
+			}
+			pos = p;
+			i += n;
+			if((pos >>> 32) >= limit && !advance()){
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Moves on to the region the position is now in.
+	 * @return false if there is nothing to play, for now (waiting) or for good
+	 */
+	private boolean advance(){
+		SampleBank.Sample s = sample;
+		long frame = pos >>> 32;
+		if(s.looped() && frame >= s.loopEnd){
+			pos -= (long) (s.loopEnd - s.loopStart) << 32;
+			frame = pos >>> 32;
+		}
+		if(frame >= s.frames){
+			cur = null;
+			request = -1;
+			waiting = false;
+			return false;
+		}
+		int index = (int) (frame / SampleBank.REGION_FRAMES);
+		SampleBank.Region r;
+		if(cur != null && index == cur.index){
+			r = cur;
+		} else if(index < s.attack.length){
+			r = s.attack[index];
+		} else {
+			long key = SampleBank.key(s, index);
+			r = next;
+			if(r == null || r.key != key){
+				r = null;
+				if(bank.isOffline()){
+					r = bank.region(key);
+				} else {
+					if(!waiting){
+						starved++;
+					}
+					waiting = true;
+					request = key;
+					bank.wake();
+					return false;
+				}
+			}
+		}
+		waiting = false;
+		enter(r);
+		return true;
+	}
+
+	/**
+	 * Makes r current and asks for whatever comes after it.
+	 */
+	private void enter(SampleBank.Region r){
+		if(r == cur){
+			return;
+		}
+		cur = r;
+		next = null;
+		SampleBank.Sample s = sample;
+		int following = r.index + 1;
+		if(s.looped() && s.loopEnd > r.start && s.loopEnd <= r.start + r.frames){
+			following = s.loopStart / SampleBank.REGION_FRAMES;
+		}
+		if(following < s.attack.length || following == r.index
+				|| (long) following*SampleBank.REGION_FRAMES >= s.frames){
+			request = -1; // nothing to fetch
+		} else {
+			request = SampleBank.key(s, following);
+			bank.wake();
+		}
+	}
+}
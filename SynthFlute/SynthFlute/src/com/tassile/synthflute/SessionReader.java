@@ -0,0 +1,118 @@
+package com.tassile.synthflute;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads back a SessionRecorder file chunk by chunk, and replays it through a
+ * FrameDecoder either at the original pace or as fast as possible.
+ */
+class SessionReader {
+	private final ByteBuffer data;
+	private final int regionSize;
+	private int pos = SessionRecorder.HEADER_BYTES;
+
+	/** Fields of the current chunk after next() returned true. */
+	long time;
+	final byte[] bytes = new byte[Short.MAX_VALUE];
+	int length;
+
+	SessionReader(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			MappedByteBuffer buf = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			byte[] magic = new byte[SessionRecorder.MAGIC.length];
+			if(buf.remaining() < SessionRecorder.HEADER_BYTES){
+				throw new IOException(f + ": too short for a session recording");
+			}
+			buf.get(magic);
+			if(!Arrays.equals(magic, SessionRecorder.MAGIC)){
+				throw new IOException(f + ": not a session recording");
+			}
+			regionSize = buf.getInt();
+			data = buf;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Moves to the next chunk.
+	 * @return false at the end of the recording
+	 */
+	boolean next(){
+		int limit = data.limit();
+		while(true){
+			int regionEnd = (pos/regionSize + 1)*regionSize;
+			if(regionEnd - pos < SessionRecorder.RECORD_HEADER){
+				pos = regionEnd;
+			}
+			if(pos + SessionRecorder.RECORD_HEADER > limit){
+				return false;
+			}
+			long t = data.getLong(pos);
+			short len = data.getShort(pos + 8);
+			if(len == SessionRecorder.PAD){
+				pos = regionEnd;
+				continue;
+			}
+			if(len <= 0 || pos + SessionRecorder.RECORD_HEADER + len > limit){
+				return false;
+			}
+			data.position(pos + SessionRecorder.RECORD_HEADER);
+			data.get(bytes, 0, len);
+			time = t;
+			length = len;
+			pos += SessionRecorder.RECORD_HEADER + len;
+			return true;
+		}
+	}
+
+	/**
+	 * Feeds every chunk to the decoder.
+	 * @param realtime  sleep between chunks to keep the recorded timing, otherwise go
+	 *                  as fast as possible
+	 * @return the number of chunks replayed
+	 */
+	long replay(FrameDecoder decoder, boolean realtime){
+		long n = 0;
+		long start = System.nanoTime();
+		long first = -1;
+		while(next()){
+			if(realtime){
+				if(first < 0){
+					first = time;
+				}
+				long wait = (time - first) - (System.nanoTime() - start);
+				if(wait > 0){
+					LockSupport.parkNanos(wait);
+				}
+			}
+			decoder.feed(bytes, 0, length);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Decodes a whole recording into a KeyEventLog, each key change at the time its
+	 * chunk was received, ready for OfflineRenderer.
+	 */
+	static KeyEventLog toLog(File f) throws IOException {
+		final SessionReader r = new SessionReader(f);
+		final KeyEventLog log = new KeyEventLog();
+		FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Listener(){
+			public void onKeys(int mask){
+				log.add(r.time, mask);
+			}
+		});
+		r.replay(decoder, false);
+		return log;
+	}
+}
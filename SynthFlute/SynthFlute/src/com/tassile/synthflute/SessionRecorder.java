@@ -0,0 +1,161 @@
+package com.tassile.synthflute;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only recording of the raw bytes a flute sent, each chunk stamped with the
+ * System.nanoTime() it was read at, so a glitch report can be replayed exactly (see
+ * SessionReader).
+ *
+ * The file is written through memory-mapped regions: record() is a handful of puts
+ * into a MappedByteBuffer, never a system call and never an allocation. A background
+ * thread maps the next region ahead of time and flushes the current one to disk every
+ * FLUSH_MS. If the writer fills a region before the next one is ready the chunk is
+ * dropped and counted rather than waiting.
+ *
+ * Layout: a 16 byte header (MAGIC, region size, 4 reserved bytes), then records of
+ * [long ns since start][short length][length bytes]. Records never straddle a region
+ * boundary; a length of PAD means the rest of the region is unused, and a length of
+ * 0 (or the end of the file) ends the recording.
+ *
+ * record() and close() must be called from the same thread (the input thread).
+ */
+class SessionRecorder {
+	static final byte[] MAGIC = { 'S', 'F', 'R', 'E', 'C', 0, 0, 1 };
+	static final int HEADER_BYTES = 16;
+	static final int RECORD_HEADER = 10;
+	static final short PAD = -1;
+	static final int MAX_CHUNK = Short.MAX_VALUE; // bytes, so the length fits its short
+	static final int DEFAULT_REGION = 1 << 20;
+	static final long FLUSH_MS = 250;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int regionSize;
+	private final long start;
+
+	private volatile MappedByteBuffer current;
+	private long currentBase = 0;
+	private volatile MappedByteBuffer next; // mapped ahead by the flusher
+	private volatile boolean open = true;
+	private long dropped = 0;
+	private long recorded = 0;
+
+	private final Thread flusher;
+
+	SessionRecorder(File f) throws IOException {
+		this(f, DEFAULT_REGION);
+	}
+
+	SessionRecorder(File f, int regionSize) throws IOException {
+		this.regionSize = regionSize;
+		file = new RandomAccessFile(f, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		start = System.nanoTime();
+
+		MappedByteBuffer first = channel.map(FileChannel.MapMode.READ_WRITE, 0, regionSize);
+		first.put(MAGIC);
+		first.putInt(regionSize);
+		first.putInt(0);
+		current = first;
+
+		flusher = new Thread("SessionRecorder"){
+			public void run(){
+				flushLoop();
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.setPriority(Thread.MIN_PRIORITY);
+		flusher.start();
+	}
+
+	/**
+	 * Appends one chunk of received bytes, at most MAX_CHUNK of them.
+	 * @param nanos  System.nanoTime() when the bytes were read
+	 * @return false if the chunk had to be dropped
+	 */
+	boolean record(long nanos, byte[] b, int off, int len){
+		if(len > MAX_CHUNK){
+			throw new IllegalArgumentException("chunk of " + len + " bytes is longer than " + MAX_CHUNK);
+		}
+		int need = RECORD_HEADER + len;
+		if(need > regionSize - HEADER_BYTES){
+			throw new IllegalArgumentException("chunk of " + len + " bytes is bigger than a region");
+		}
+		MappedByteBuffer buf = current;
+		if(buf.remaining() < need){
+			if(buf.remaining() >= RECORD_HEADER){
+				buf.putLong(0);
+				buf.putShort(PAD);
+			}
+			buf.position(buf.limit());
+
+			MappedByteBuffer n = next;
+			if(n == null){
+				// flusher hasn't caught up, don't wait for it
+				dropped++;
+				LockSupport.unpark(flusher);
+				return false;
+			}
+			next = null;
+			currentBase += regionSize;
+			current = buf = n;
+			LockSupport.unpark(flusher);
+		}
+		buf.putLong(nanos - start);
+		buf.putShort((short) len);
+		buf.put(b, off, len);
+		recorded++;
+		return true;
+	}
+
+	long droppedCount(){
+		return dropped;
+	}
+
+	long recordedCount(){
+		return recorded;
+	}
+
+	/**
+	 * Flushes, trims the file to what was written and stops the flusher.
+	 */
+	void close() throws IOException {
+		open = false;
+		LockSupport.unpark(flusher);
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		MappedByteBuffer buf = current;
+		long length = currentBase + buf.position();
+		buf.force();
+		next = null;
+		channel.truncate(length);
+		file.close();
+	}
+
+	private void flushLoop(){
+		long mappedBase = 0; // base of the newest mapped region
+		while(open){
+			try {
+				if(next == null){
+					mappedBase += regionSize;
+					next = channel.map(FileChannel.MapMode.READ_WRITE, mappedBase, regionSize);
+				}
+				current.force();
+			} catch (IOException e) {
+				// out of space or similar: stop mapping, record() will count the drops
+				return;
+			}
+			LockSupport.parkNanos(FLUSH_MS*1000000L);
+		}
+	}
+}
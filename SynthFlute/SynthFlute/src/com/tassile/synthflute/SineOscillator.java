@@ -0,0 +1,43 @@
+package com.tassile.synthflute;
+
+/**
+ * The exact path: Math.sin every sample. The phase is wrapped to [0, 2pi) so that it
+ * keeps its precision no matter how long it has been running.
+ */
+class SineOscillator implements Oscillator {
+	private static final double TWOPI = 8.*Math.atan(1.);
+
+	private final int sr;
+	private double ph = 0.0;
+	private double inc = 0.0;
+
+	SineOscillator(int sr){
+		this.sr = sr;
+	}
+
+	public void setFrequency(double hz){
+		inc = TWOPI*hz/sr;
+	}
+
+	public void setNote(NoteTable notes, int index){
+		setFrequency(notes.frequency(index));
+	}
+
+	public void render(float[] buf, int off, int len, float amp){
+		double p = ph;
+		double i2 = inc;
+		int end = off + len;
+		for(int i=off; i<end; i++){
+			buf[i] += amp*(float)Math.sin(p);
+			p += i2;
+			if(p >= TWOPI){
+				p -= TWOPI;
+			}
+		}
+		ph = p;
+	}
+
+	public void reset(){
+		ph = 0.0;
+	}
+}
@@ -0,0 +1,468 @@
+package com.tassile.synthflute;
+
+/**
+ * The synthesis loop, pulled out of SoundGenService so that it does not depend on
+ * AudioTrack (or anything else from android.*). Whoever owns the output calls
+ * render() once per block and hands the samples to the hardware, a file, or nothing.
+ *
+ * The key state is decoded once at the start of each block rather than per sample,
+ * and nothing is allocated after construction (the mix buffer is only regrown if a
+ * caller asks for a bigger block than it has seen before).
+ *
+ * Key changes can also be scheduled at a sample offset inside the next block with
+ * schedule(); render() then splits the block at those offsets, so the timing of a
+ * change no longer depends on where it happened to land relative to the block.
+ *
+ * The note table (see Tuning) can be replaced from any thread with setNotes(); the
+ * new one takes over at the start of the next block, sounding notes included.
+ *
+ * In MODE_POLY the voices can be spread over several threads, see setRenderThreads().
+ *
+ * After the voices, the mix runs through a DspGraph (filter, delay, reverb, gain...)
+ * at the end of each block; the graph also keeps the time each stage takes.
+ */
+class SynthEngine {
+	static final int NUM_KEYS = 12;
+	static final int NUM_NOTES = 96; //because (7*12)+11+1 (the +1 is zero'th position)
+	static final double A = 440.0; //A0 Hz
+	static final int A_OFF = 48; //A0's offset in the array's indices
+
+	static final int OSC_SINE = 0;  // exact Math.sin per sample
+	static final int OSC_TABLE = 1; // wavetable lookup
+	static final int OSC_DDS = 2;   // wavetable lookup on a fixed-point phase
+	static final int OSC_SAW = 3;      // band-limited, see BlepOscillator
+	static final int OSC_SQUARE = 4;
+	static final int OSC_TRIANGLE = 5;
+	static final int OSC_SAMPLE = 6;   // recorded samples, needs setSampleBank()
+	static final int OSC_FLUTE = 7;    // waveguide model, see FluteOscillator
+
+	static final int MODE_MONO = 0; // one oscillator, always sounding, follows the keys
+	static final int MODE_POLY = 1; // voice pool, gated by the PLAYNOTE bits
+
+	static final int NOTE_BITS = 0x7F;  // [0-3] note, [4-6] octave
+	static final int PLAY_BITS = 0xF80; // 7,8,9... = PLAYNOTE
+	static final int DEFAULT_VOICES = 16;
+	static final int MAX_EVENTS = 64; // scheduled key changes per block
+
+	final int sr;
+	int amp = 10000;
+
+	private NoteTable notes;
+	private volatile NoteTable nextNotes; // set by any thread, picked up per block
+	private final KeyState keys;
+	private Oscillator osc;
+	private float[] mix = new float[0];
+
+	private int mode = MODE_MONO;
+	private int oscType = OSC_DDS;
+	private int numVoices = DEFAULT_VOICES;
+	private VoicePool pool;
+	private VoiceWorkers workers;
+	private SampleBank bank;
+	private volatile DspGraph graph = new DspGraph();
+	private int polyMask = 0;  // key mask last seen by the pool
+	private int polyNote = -1; // note the keys are holding in poly mode
+
+	private int current = 0;  // key mask in effect
+	private int lastSeen = 0; // last value read from keys
+	private final int[] evMask = new int[MAX_EVENTS];
+	private final int[] evOffset = new int[MAX_EVENTS];
+	private int evCount = 0;
+
+	SynthEngine(int sr){
+		this(sr, new KeyState());
+	}
+
+	/**
+	 * @param keys  where the input side publishes the key mask, read once per block
+	 */
+	SynthEngine(int sr, KeyState keys){
+		this.sr = sr;
+		this.keys = keys;
+
+		// the notes, in Hz and as phase increments for sr (cached by Tuning)
+		notes = nextNotes = Tuning.DEFAULT.table(sr);
+		setOscillatorType(OSC_DDS);
+	}
+
+	/**
+	 * Renders len samples into out, starting at off.
+	 */
+	void render(short[] out, int off, int len){
+		toShorts(renderMix(len), amp, out, off, len);
+	}
+
+	/**
+	 * Renders a block as floats, voices and graph but before amp and clipping, so
+	 * several engines can be mixed (see Hub). The buffer belongs to the engine and is
+	 * overwritten by the next call.
+	 */
+	float[] renderMix(int len){
+		float[] m = mix;
+		if(m.length < len){
+			m = mix = new float[len];
+		}
+		for(int i=0; i<len; i++){
+			m[i] = 0f;
+		}
+
+		// a new tuning and the key state are only looked at once per block
+		NoteTable n = nextNotes;
+		if(n != notes){
+			notes = n;
+			if(pool != null){
+				pool.setNotes(n);
+			}
+		}
+
+		final DspGraph g = graph;
+		long t0 = System.nanoTime();
+
+		int k = keys.get();
+		if(k != lastSeen){
+			lastSeen = k;
+			current = k;
+		}
+
+		// then split the block wherever a scheduled change lands
+		int pos = 0;
+		for(int e=0; e<evCount; e++){
+			int at = evOffset[e];
+			if(at > len){
+				at = len;
+			}
+			if(at > pos){
+				renderSegment(m, pos, at - pos, current);
+				pos = at;
+			}
+			current = evMask[e];
+		}
+		evCount = 0;
+		if(pos < len){
+			renderSegment(m, pos, len - pos, current);
+		}
+
+		g.voicesDone(System.nanoTime() - t0, len);
+		g.process(m, 0, len);
+		return m;
+	}
+
+	/**
+	 * Scales a float mix by amp and clips it to 16 bits.
+	 */
+	static void toShorts(float[] m, float a, short[] out, int off, int len){
+		for(int i=0; i<len; i++){
+			float v = m[i]*a;
+			if(v > Short.MAX_VALUE){
+				v = Short.MAX_VALUE;
+			} else if(v < Short.MIN_VALUE){
+				v = Short.MIN_VALUE;
+			}
+			out[off+i] = (short) v;
+		}
+	}
+
+	private void renderSegment(float[] m, int off, int len, int keyMask){
+		if(mode == MODE_POLY){
+			updatePoly(keyMask);
+			pool.render(m, off, len);
+		} else {
+			Oscillator o = osc;
+			o.setNote(notes, noteIndex(keyMask));
+			o.render(m, off, len, 1f);
+		}
+	}
+
+	/**
+	 * Queues a key change to happen offset frames into the next render() call.
+	 * Offsets must not go backwards within a block; one that does is moved up to the
+	 * previous one. If more than MAX_EVENTS arrive, the last one absorbs the rest so
+	 * the final key state is still right. Only call this from the rendering thread.
+	 */
+	void schedule(int mask, int offset){
+		mask &= KeyState.MASK;
+		if(offset < 0){
+			offset = 0;
+		}
+		if(evCount > 0 && offset < evOffset[evCount-1]){
+			offset = evOffset[evCount-1];
+		}
+		if(evCount == MAX_EVENTS){
+			evMask[evCount-1] = mask;
+			return;
+		}
+		evMask[evCount] = mask;
+		evOffset[evCount] = offset;
+		evCount++;
+	}
+
+	/**
+	 * Turns key mask changes into note on/off for the pool: a new note starts while any
+	 * PLAYNOTE bit is down and the previous one is released, so its tail overlaps.
+	 */
+	private void updatePoly(int mask){
+		if(mask == polyMask){
+			return;
+		}
+		polyMask = mask;
+		int note = (mask & PLAY_BITS) != 0 ? noteIndex(mask) : -1;
+		if(note != polyNote){
+			if(polyNote >= 0){
+				pool.noteOff(polyNote);
+			}
+			if(note >= 0){
+				pool.noteOn(note);
+			}
+			polyNote = note;
+		}
+	}
+
+	/**
+	 * Replaces the note table from the start of the next block. Safe to call from any
+	 * thread; the table should come from Tuning.table(), built off the audio thread.
+	 */
+	void setNotes(NoteTable table){
+		if(table.sr != sr || table.size() < NUM_NOTES){
+			throw new IllegalArgumentException("note table for " + table.sr + " Hz, " + table.size() + " notes");
+		}
+		nextNotes = table;
+	}
+
+	/**
+	 * Builds (or fetches) the table for a tuning on the calling thread and hands it to
+	 * setNotes().
+	 */
+	void setTuning(Tuning tuning){
+		setNotes(tuning.table(sr));
+	}
+
+	/**
+	 * Switches every voice (and the mono oscillator) to one of the OSC_ types. Any
+	 * per-voice choices from setVoiceOscillator() are reset. Stays in the current mode.
+	 */
+	void setOscillatorType(int type){
+		osc = newOscillator(type);
+		oscType = type;
+		if(pool != null){
+			newPool(numVoices);
+		}
+	}
+
+	/**
+	 * Switches to MODE_POLY with a pool of the given number of voices. All voices are
+	 * allocated here, nothing is allocated per note.
+	 */
+	void setPolyphonic(int voices){
+		if(voices < 1){
+			throw new IllegalArgumentException("need at least one voice");
+		}
+		newPool(voices);
+		mode = MODE_POLY;
+	}
+
+	/**
+	 * (Re)builds the pool with voices of the current oscillator type, leaving the mode
+	 * as it is.
+	 */
+	private void newPool(int voices){
+		Oscillator[] oscs = new Oscillator[voices];
+		for(int i=0; i<voices; i++){
+			oscs[i] = newOscillator(oscType);
+		}
+		numVoices = voices;
+		pool = new VoicePool(notes, oscs, sr);
+		pool.setWorkers(workers);
+		polyMask = 0;
+		polyNote = -1;
+	}
+
+	/**
+	 * Renders the voice pool on this many threads, the audio thread included, from the
+	 * next block; 1 goes back to the audio thread alone and stops the others. Blocks
+	 * with too few active voices to be worth it are still rendered on one thread. Only
+	 * call this from the thread that calls render(), or before it starts.
+	 *
+	 * Capped at the number of cores: a worker with no core to run on only makes the
+	 * audio thread spin waiting for it.
+	 */
+	void setRenderThreads(int threads){
+		setRenderThreads(threads, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * The same with another cap, for checking the split on a machine with fewer cores
+	 * than threads.
+	 */
+	void setRenderThreads(int threads, int maxThreads){
+		threads = Math.min(threads, Math.max(1, maxThreads));
+		if(threads < 1){
+			throw new IllegalArgumentException("need at least one thread");
+		}
+		if(workers != null){
+			if(workers.threads() == threads){
+				return;
+			}
+			workers.shutdown();
+			workers = null;
+		}
+		if(threads > 1){
+			workers = new VoiceWorkers(threads);
+		}
+		if(pool != null){
+			pool.setWorkers(workers);
+		}
+	}
+
+	int getRenderThreads(){
+		return workers == null ? 1 : workers.threads();
+	}
+
+	/**
+	 * How often blocks were split over the threads, or null when rendering on one.
+	 */
+	VoiceWorkers getWorkers(){
+		return workers;
+	}
+
+	/**
+	 * The bank OSC_SAMPLE voices play from. Set it before choosing OSC_SAMPLE.
+	 */
+	void setSampleBank(SampleBank bank){
+		this.bank = bank;
+	}
+
+	/**
+	 * Replaces the processing graph from the next block. Safe to call from any thread;
+	 * build the graph (and its nodes) there, not on the audio thread.
+	 */
+	void setGraph(DspGraph graph){
+		if(graph == null){
+			throw new IllegalArgumentException("null graph, use an empty one");
+		}
+		this.graph = graph;
+	}
+
+	/**
+	 * Shorthand for setGraph() with a graph of these nodes, in order. No nodes is an
+	 * empty graph.
+	 */
+	void setEffects(DspNode... chain){
+		setGraph(new DspGraph(chain));
+	}
+
+	/**
+	 * The graph in use, for its timings.
+	 */
+	DspGraph getGraph(){
+		return graph;
+	}
+
+	/**
+	 * Gives one voice of the pool its own oscillator type, e.g. to layer a saw under
+	 * the sine voices. The oscillator is allocated here, not per note. Only meaningful
+	 * in MODE_POLY, and only from the thread that calls render().
+	 */
+	void setVoiceOscillator(int voice, int type){
+		if(pool != null){
+			pool.setOscillator(voice, newOscillator(type));
+		}
+	}
+
+	void setMonophonic(){
+		mode = MODE_MONO;
+	}
+
+	int getMode(){
+		return mode;
+	}
+
+	/**
+	 * Starts a note directly, e.g. for chords. Only meaningful in MODE_POLY, and only
+	 * from the thread that calls render().
+	 */
+	void noteOn(int index){
+		if(pool != null){
+			pool.noteOn(index);
+		}
+	}
+
+	void noteOff(int index){
+		if(pool != null){
+			pool.noteOff(index);
+		}
+	}
+
+	int activeVoices(){
+		return mode == MODE_POLY ? pool.activeVoices() : 1;
+	}
+
+	private Oscillator newOscillator(int type){
+		switch(type){
+		case OSC_SINE:
+			return new SineOscillator(sr);
+		case OSC_TABLE:
+			return new TableOscillator(sr);
+		case OSC_DDS:
+			return new DdsOscillator(sr);
+		case OSC_SAW:
+			return new BlepOscillator(sr, BlepOscillator.SAW);
+		case OSC_SQUARE:
+			return new BlepOscillator(sr, BlepOscillator.SQUARE);
+		case OSC_TRIANGLE:
+			return new BlepOscillator(sr, BlepOscillator.TRIANGLE);
+		case OSC_FLUTE:
+			return new FluteOscillator(sr);
+		case OSC_SAMPLE:
+			if(bank == null){
+				throw new IllegalStateException("no sample bank set");
+			}
+			return bank.newOscillator(sr);
+		default:
+			throw new IllegalArgumentException("unknown oscillator type " + type);
+		}
+	}
+
+	/**
+	 * Safe to call from any one thread other than the audio thread.
+	 */
+	void setKeyMask(int mask){
+		keys.set(mask);
+	}
+
+	/**
+	 * The key mask the last rendered sample was played with.
+	 */
+	int getKeyMask(){
+		return current;
+	}
+
+	double frequency(int index){
+		return notes.frequency(index);
+	}
+
+	/**
+	 * Index into the note table for a key mask.
+	 * [0-3] = note, [4-6] = octave, 7,8,9... = PLAYNOTE (could be replaced later with velocity info)
+	 */
+	static int noteIndex(int mask){
+		int note = mask & 0xF;
+		int octave = (mask >> 4) & 0x7;
+		int index = (octave*12)+note;
+		// note bits go up to 15, so the top octave can run off the end of the table
+		return index < NUM_NOTES ? index : NUM_NOTES-1;
+	}
+
+	/**
+	 * Packs the old boolean[] key representation into a mask, key i -> bit i.
+	 */
+	static int packKeys(boolean[] keys){
+		int mask = 0;
+		int n = keys.length < NUM_KEYS ? keys.length : NUM_KEYS;
+		for(int i=0; i<n; i++){
+			if(keys[i]){
+				mask |= 1 << i;
+			}
+		}
+		return mask;
+	}
+}
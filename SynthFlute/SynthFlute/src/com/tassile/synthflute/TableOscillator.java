@@ -0,0 +1,74 @@
+package com.tassile.synthflute;
+
+/**
+ * Wavetable oscillator. One cycle of the wave is precomputed into a power-of-two table
+ * (shared by every instance) and read back with linear interpolation, so the per-sample
+ * cost is a couple of array reads instead of a Math.sin call.
+ *
+ * The phase is kept in table units and wrapped every cycle, so it never grows.
+ */
+class TableOscillator implements Oscillator {
+	static final int TABLE_BITS = 12;
+	static final int TABLE_SIZE = 1 << TABLE_BITS;
+
+	/** One cycle of sine, plus a guard point so idx+1 never needs wrapping. */
+	static final float[] SINE = new float[TABLE_SIZE + 1];
+
+	static {
+		double twopi = 8.*Math.atan(1.);
+		for(int i=0; i<TABLE_SIZE; i++){
+			SINE[i] = (float) Math.sin(twopi*i/TABLE_SIZE);
+		}
+		SINE[TABLE_SIZE] = SINE[0];
+	}
+
+	private final int sr;
+	private final float[] table;
+	private double ph = 0.0; // in table units, [0, TABLE_SIZE)
+	private double inc = 0.0;
+
+	TableOscillator(int sr){
+		this(sr, SINE);
+	}
+
+	/**
+	 * @param table  TABLE_SIZE+1 samples of one cycle, the last equal to the first
+	 */
+	TableOscillator(int sr, float[] table){
+		if(table.length != TABLE_SIZE + 1){
+			throw new IllegalArgumentException("wavetable must have " + (TABLE_SIZE + 1) + " entries");
+		}
+		this.sr = sr;
+		this.table = table;
+	}
+
+	public void setFrequency(double hz){
+		inc = hz*TABLE_SIZE/sr;
+	}
+
+	public void setNote(NoteTable notes, int index){
+		setFrequency(notes.frequency(index));
+	}
+
+	public void render(float[] buf, int off, int len, float amp){
+		final float[] t = table;
+		double p = ph;
+		double i2 = inc;
+		int end = off + len;
+		for(int i=off; i<end; i++){
+			int idx = (int) p;
+			float frac = (float) (p - idx);
+			float a = t[idx];
+			buf[i] += amp*(a + frac*(t[idx+1] - a));
+			p += i2;
+			if(p >= TABLE_SIZE){
+				p -= TABLE_SIZE; // inc is below TABLE_SIZE for anything under sr
+			}
+		}
+		ph = p;
+	}
+
+	public void reset(){
+		ph = 0.0;
+	}
+}
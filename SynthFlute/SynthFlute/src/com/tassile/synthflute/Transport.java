@@ -0,0 +1,85 @@
+package com.tassile.synthflute;
+
+import java.io.IOException;
+
+/**
+ * Where flutes connect from: accepting and making links, and moving their bytes. The
+ * rest of the input path (decoding, queues, the hub) only sees a Listener being told
+ * about connections and the bytes that arrive on them, so it runs the same over
+ * Bluetooth RFCOMM (RfcommTransport), TCP (NioTransport), or a loopback socket in a
+ * test on a desktop.
+ *
+ * How many threads that takes is up to the transport: RFCOMM only has blocking
+ * streams, so it reads each link on its own thread, while NioTransport serves every
+ * peer from one selector thread. Either way the listener is called on a transport
+ * thread and must not block it.
+ */
+interface Transport {
+	/**
+	 * Gets told about links and their bytes, on the transport's threads. For any one
+	 * connection the calls come from one thread at a time, in order: onConnected(),
+	 * any number of onData(), onDisconnected().
+	 */
+	interface Listener {
+		/**
+		 * A link is up. Attach any per-link state to it here.
+		 * @return false to refuse it; it is then closed without onDisconnected()
+		 */
+		boolean onConnected(Connection c);
+
+		/**
+		 * Bytes arrived on c. b is only valid during the call.
+		 */
+		void onData(Connection c, byte[] b, int off, int len);
+
+		/**
+		 * c is gone, after its last onData().
+		 * @param cause  why, or null if the far end just closed it
+		 */
+		void onDisconnected(Connection c, IOException cause);
+
+		/**
+		 * A link asked for with connect() never came up; nothing else is said about it.
+		 * @param address  as given to connect()
+		 */
+		void onConnectFailed(String address, IOException cause);
+	}
+
+	/**
+	 * One link to a flute or controller.
+	 */
+	interface Connection {
+		/** Something to show the user, e.g. the device name or address. */
+		String name();
+
+		/**
+		 * Sends bytes to the peer, e.g. FrameEncoder.HELLO_V2. May be called from any
+		 * thread; it does not wait for the peer to read them.
+		 */
+		void write(byte[] b) throws IOException;
+
+		/** Drops the link; the listener still gets onDisconnected(). */
+		void close();
+
+		void attach(Object o);
+
+		Object attachment();
+	}
+
+	/**
+	 * Starts accepting links and reporting them, and their bytes, to the listener.
+	 */
+	void listen(Listener listener) throws IOException;
+
+	/**
+	 * Makes a link to address (its form depends on the transport) in the background
+	 * and reports it to the listener passed to listen(), or its failure to
+	 * onConnectFailed().
+	 */
+	void connect(String address) throws IOException;
+
+	/**
+	 * Stops accepting and drops every link.
+	 */
+	void close();
+}
@@ -0,0 +1,241 @@
+package com.tassile.synthflute;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How note indices map to pitch: a reference pitch for A (note index
+ * SynthEngine.A_OFF), a temperament, and a transposition in semitones.
+ *
+ * A temperament is the size in cents of each of the 12 degrees above its tonic; the
+ * tonic is a pitch class in the flute's numbering, where 0 is A. Equal temperament
+ * is 100 cents per step and doesn't care about the tonic; just and meantone sound
+ * right in the keys near it. Transposing makes every key play the pitch n semitones
+ * up (or down) under the same temperament, so A still sounds at the reference.
+ *
+ * Tunings are immutable. Tables are built by table(sr) the first time a tuning is
+ * used at a sample rate and the last MAX_TABLES are cached, so switching back and
+ * forth, or reconnecting, costs nothing, while sweeping the reference pitch can't
+ * pile up a table per step; build them off the audio thread, then hand the table to
+ * SynthEngine.setNotes().
+ */
+final class Tuning {
+	static final int DEGREES = 12;
+	static final int TONIC_A = 0;
+	static final int TONIC_C = 3; // the usual tonic for the historical temperaments
+
+	/** What the engine has always played: equal temperament, A = 440 Hz. */
+	static final Tuning DEFAULT = equal();
+
+	static final int MAX_TABLES = 16;
+
+	// least recently used first, guarded by itself
+	private static final LinkedHashMap<Key, NoteTable> TABLES = new LinkedHashMap<Key, NoteTable>(MAX_TABLES, 0.75f, true){
+		protected boolean removeEldestEntry(Map.Entry<Key, NoteTable> eldest){
+			return size() > MAX_TABLES;
+		}
+	};
+
+	final String name;
+	final double referenceHz;
+	final int tonic;
+	final int transpose;
+	private final double[] cents; // DEGREES entries, cents[0] == 0
+
+	private Tuning(String name, double[] cents, int tonic, double referenceHz, int transpose){
+		if(cents.length != DEGREES || cents[0] != 0.0){
+			throw new IllegalArgumentException(name + ": need " + DEGREES + " degrees, starting at 0 cents");
+		}
+		for(int i=1; i<DEGREES; i++){
+			if(!(cents[i] > cents[i-1] && cents[i] < 1200.0)){
+				throw new IllegalArgumentException(name + ": degree " + i + " out of order: " + cents[i]);
+			}
+		}
+		if(!(referenceHz > 0)){
+			throw new IllegalArgumentException("reference pitch " + referenceHz);
+		}
+		this.name = name;
+		this.cents = cents.clone();
+		this.tonic = ((tonic % DEGREES) + DEGREES) % DEGREES;
+		this.referenceHz = referenceHz;
+		this.transpose = transpose;
+	}
+
+	static Tuning equal(){
+		double[] c = new double[DEGREES];
+		for(int i=0; i<DEGREES; i++){
+			c[i] = 100.0*i;
+		}
+		return new Tuning("equal", c, TONIC_A, SynthEngine.A, 0);
+	}
+
+	/** 5-limit just intonation. */
+	static Tuning just(int tonic){
+		double[] ratios = { 1, 16/15., 9/8., 6/5., 5/4., 4/3., 45/32., 3/2., 8/5., 5/3., 9/5., 15/8. };
+		double[] c = new double[DEGREES];
+		for(int i=0; i<DEGREES; i++){
+			c[i] = 1200.0 * Math.log(ratios[i]) / Math.log(2);
+		}
+		return new Tuning("just", c, tonic, SynthEngine.A, 0);
+	}
+
+	/**
+	 * Quarter-comma meantone: pure major thirds, fifths narrowed by a quarter of the
+	 * syntonic comma, a chain of them from three flats to eight sharps of the tonic
+	 * (the wolf lands between the 8th and the 3rd degree).
+	 */
+	static Tuning meantone(int tonic){
+		double fifth = 1200.0 * Math.log(5) / Math.log(2) / 4;
+		double[] c = new double[DEGREES];
+		for(int k=-3; k<=8; k++){
+			int degree = ((7*k) % DEGREES + DEGREES) % DEGREES;
+			double x = k*fifth;
+			c[degree] = x - 1200.0*Math.floor(x/1200.0);
+		}
+		return new Tuning("meantone", c, tonic, SynthEngine.A, 0);
+	}
+
+	/**
+	 * @param cents  cents above the tonic of each of the 12 degrees, the first 0
+	 */
+	static Tuning custom(String name, double[] cents, int tonic){
+		return new Tuning(name, cents, tonic, SynthEngine.A, 0);
+	}
+
+	/**
+	 * Reads a custom temperament: the 12 degrees in cents, whitespace or line
+	 * separated, starting with 0. '#' starts a comment line. The name is the file's.
+	 */
+	static Tuning read(File f, int tonic) throws IOException {
+		double[] c = new double[DEGREES];
+		int n = 0;
+		BufferedReader r = new BufferedReader(new FileReader(f));
+		try {
+			String line;
+			int lineNo = 0;
+			while((line = r.readLine()) != null){
+				lineNo++;
+				line = line.trim();
+				if(line.length() == 0 || line.charAt(0) == '#'){
+					continue;
+				}
+				String[] parts = line.split("\\s+");
+				for(int i=0; i<parts.length; i++){
+					if(n == DEGREES){
+						throw new IOException(f + ":" + lineNo + ": more than " + DEGREES + " degrees");
+					}
+					try {
+						c[n++] = Double.parseDouble(parts[i]);
+					} catch (NumberFormatException e) {
+						throw new IOException(f + ":" + lineNo + ": " + e.getMessage());
+					}
+				}
+			}
+		} finally {
+			r.close();
+		}
+		if(n != DEGREES){
+			throw new IOException(f + ": expected " + DEGREES + " degrees, got " + n);
+		}
+		try {
+			return custom(f.getName(), c, tonic);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(f + ": " + e.getMessage());
+		}
+	}
+
+	Tuning withReference(double hz){
+		return new Tuning(name, cents, tonic, hz, transpose);
+	}
+
+	Tuning withTonic(int pitchClass){
+		return new Tuning(name, cents, pitchClass, referenceHz, transpose);
+	}
+
+	Tuning withTranspose(int semitones){
+		return new Tuning(name, cents, tonic, referenceHz, semitones);
+	}
+
+	/**
+	 * Cents of a (transposed) note index above the tonic of octave 0.
+	 */
+	private double cents(int n){
+		int d = n - tonic;
+		int octave = d >= 0 ? d / DEGREES : -((DEGREES - 1 - d) / DEGREES);
+		return 1200.0*octave + cents[d - octave*DEGREES];
+	}
+
+	double frequency(int note){
+		double c = cents(note + transpose) - cents(SynthEngine.A_OFF);
+		return referenceHz * Math.pow(2, c / 1200.0);
+	}
+
+	/**
+	 * The note table for this tuning at sr, built on first use and cached.
+	 */
+	NoteTable table(int sr){
+		Key k = new Key(this, sr);
+		NoteTable t;
+		synchronized(TABLES){
+			t = TABLES.get(k);
+		}
+		if(t == null){
+			double[] hz = new double[SynthEngine.NUM_NOTES];
+			for(int i=0; i<hz.length; i++){
+				hz[i] = frequency(i);
+			}
+			t = new NoteTable(hz, sr);
+			synchronized(TABLES){
+				NoteTable raced = TABLES.get(k);
+				if(raced != null){
+					t = raced;
+				} else {
+					TABLES.put(k, t);
+				}
+			}
+		}
+		return t;
+	}
+
+	public boolean equals(Object o){
+		if(!(o instanceof Tuning)){
+			return false;
+		}
+		Tuning t = (Tuning) o;
+		return t.referenceHz == referenceHz && t.tonic == tonic && t.transpose == transpose
+				&& Arrays.equals(t.cents, cents);
+	}
+
+	public int hashCode(){
+		long r = Double.doubleToLongBits(referenceHz);
+		return ((Arrays.hashCode(cents)*31 + (int) (r ^ (r >>> 32)))*31 + tonic)*31 + transpose;
+	}
+
+	public String toString(){
+		return name + ", A=" + referenceHz + " Hz" + (tonic != TONIC_A ? ", tonic " + tonic : "")
+				+ (transpose != 0 ? ", transposed " + transpose : "");
+	}
+
+	private static final class Key {
+		final Tuning tuning;
+		final int sr;
+
+		Key(Tuning tuning, int sr){
+			this.tuning = tuning;
+			this.sr = sr;
+		}
+
+		public boolean equals(Object o){
+			return o instanceof Key && ((Key) o).sr == sr && ((Key) o).tuning.equals(tuning);
+		}
+
+		public int hashCode(){
+			return tuning.hashCode()*31 + sr;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.tassile.synthflute;
+
+/**
+ * One voice of the polyphonic pool: an oscillator plus a linear attack/release
+ * envelope. Voices are created up front by VoicePool and reused, never allocated
+ * per note.
+ */
+class Voice {
+	static final int FREE = 0;
+	static final int HELD = 1;
+	static final int RELEASED = 2;
+
+	Oscillator osc;
+	int state = FREE;
+	int note = -1;
+	long age = 0; // start order, used for stealing
+
+	float level = 0f; // current envelope level
+	private float target = 0f;
+	private float step = 0f;
+
+	Voice(Oscillator osc){
+		this.osc = osc;
+	}
+
+	void start(int note, NoteTable notes, long age, int attackSamples){
+		this.note = note;
+		this.age = age;
+		state = HELD;
+		osc.setNote(notes, note);
+		if(level == 0f){
+			osc.reset();
+		}
+		// ramp from wherever we are, so stealing a sounding voice doesn't click
+		target = 1f;
+		step = (target - level)/attackSamples;
+	}
+
+	void release(int releaseSamples){
+		state = RELEASED;
+		target = 0f;
+		step = -level/releaseSamples;
+	}
+
+	/**
+	 * Adds this voice into buf. scratch must be at least len long.
+	 * @return false once the voice has finished releasing and is free again
+	 */
+	boolean render(float[] buf, int off, int len, float[] scratch){
+		if(step == 0f){
+			if(state == RELEASED){
+				// released at (or already faded to) zero
+				state = FREE;
+				note = -1;
+				return false;
+			}
+			// steady state, the oscillator can write straight into the mix
+			osc.render(buf, off, len, level);
+			return true;
+		}
+
+		for(int i=0; i<len; i++){
+			scratch[i] = 0f;
+		}
+		osc.render(scratch, 0, len, 1f);
+
+		float l = level;
+		float s = step;
+		float t = target;
+		for(int i=0; i<len; i++){
+			l += s;
+			if((s > 0f && l >= t) || (s < 0f && l <= t)){
+				l = t;
+				s = 0f;
+			}
+			buf[off+i] += l*scratch[i];
+		}
+		level = l;
+		step = s;
+
+		if(state == RELEASED && l == 0f){
+			state = FREE;
+			note = -1;
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,188 @@
+package com.tassile.synthflute;
+
+/**
+ * Fixed-size pool of voices for polyphonic playing. All voices are allocated when the
+ * pool is built; noteOn() finds a voice through a note index -> voice table, and when
+ * the pool is exhausted it steals deterministically: the quietest releasing voice if
+ * there is one, otherwise the oldest held voice (lowest index breaks ties).
+ *
+ * Not thread safe, everything here is called from the audio thread. The one exception
+ * is rendering with VoiceWorkers, where each thread renders its own share of the
+ * voices through renderPart() and the audio thread does the bookkeeping afterwards.
+ */
+class VoicePool {
+	private final Voice[] voices;
+	private final int[] noteToVoice = new int[SynthEngine.NUM_NOTES];
+	private final int[] ended; // note a voice finished on during a split block, or -1
+	private VoiceWorkers workers;
+	private NoteTable notes;
+	private float[] scratch = new float[0];
+	private long counter = 0;
+	private int attackSamples;
+	private int releaseSamples;
+	private int active = 0;
+
+	/**
+	 * @param notes  pitch of every note, shared with the engine
+	 * @param oscs   one oscillator per voice
+	 */
+	VoicePool(NoteTable notes, Oscillator[] oscs, int sr){
+		this.notes = notes;
+		voices = new Voice[oscs.length];
+		ended = new int[oscs.length];
+		for(int i=0; i<oscs.length; i++){
+			voices[i] = new Voice(oscs[i]);
+			ended[i] = -1;
+		}
+		for(int i=0; i<noteToVoice.length; i++){
+			noteToVoice[i] = -1;
+		}
+		attackSamples = Math.max(1, sr/200);  // 5ms
+		releaseSamples = Math.max(1, sr/12);  // ~80ms
+	}
+
+	void noteOn(int note){
+		int v = noteToVoice[note];
+		if(v < 0){
+			v = allocate();
+			Voice old = voices[v];
+			if(old.note >= 0){
+				noteToVoice[old.note] = -1;
+			} else {
+				active++;
+			}
+			noteToVoice[note] = v;
+		}
+		voices[v].start(note, notes, counter++, attackSamples);
+	}
+
+	void noteOff(int note){
+		int v = noteToVoice[note];
+		if(v >= 0 && voices[v].state == Voice.HELD){
+			voices[v].release(releaseSamples);
+		}
+	}
+
+	/**
+	 * Switches to another note table, retuning the voices that are sounding.
+	 */
+	void setNotes(NoteTable table){
+		notes = table;
+		for(int i=0; i<voices.length; i++){
+			Voice v = voices[i];
+			if(v.state != Voice.FREE){
+				v.osc.setNote(table, v.note);
+			}
+		}
+	}
+
+	/**
+	 * Replaces one voice's oscillator. A sounding voice carries on at its note.
+	 */
+	void setOscillator(int voice, Oscillator osc){
+		Voice v = voices[voice];
+		if(v.state != Voice.FREE){
+			osc.setNote(notes, v.note);
+		}
+		v.osc = osc;
+	}
+
+	void allOff(){
+		for(int i=0; i<voices.length; i++){
+			if(voices[i].state == Voice.HELD){
+				voices[i].release(releaseSamples);
+			}
+		}
+	}
+
+	private int allocate(){
+		int quietest = -1;
+		int oldest = -1;
+		for(int i=0; i<voices.length; i++){
+			Voice v = voices[i];
+			if(v.state == Voice.FREE){
+				return i;
+			}
+			if(v.state == Voice.RELEASED){
+				if(quietest < 0 || v.level < voices[quietest].level){
+					quietest = i;
+				}
+			} else if(oldest < 0 || v.age < voices[oldest].age){
+				oldest = i;
+			}
+		}
+		return quietest >= 0 ? quietest : oldest;
+	}
+
+	/**
+	 * Adds all sounding voices into buf.
+	 */
+	void render(float[] buf, int off, int len){
+		if(active == 0){
+			return;
+		}
+		VoiceWorkers w = workers;
+		if(w != null){
+			if(w.worthIt(active)){
+				w.render(this, buf, off, len);
+				for(int i=0; i<ended.length; i++){
+					if(ended[i] >= 0){
+						noteToVoice[ended[i]] = -1;
+						ended[i] = -1;
+						active--;
+					}
+				}
+				return;
+			}
+			w.countSerial();
+		}
+		if(scratch.length < len){
+			scratch = new float[len];
+		}
+		for(int i=0; i<voices.length; i++){
+			Voice v = voices[i];
+			if(v.state == Voice.FREE){
+				continue;
+			}
+			int note = v.note;
+			if(!v.render(buf, off, len, scratch)){
+				noteToVoice[note] = -1;
+				active--;
+			}
+		}
+	}
+
+	/**
+	 * Adds voices part, part+parts, part+2*parts... into out. Called concurrently by
+	 * VoiceWorkers, one thread per part; a voice that finishes is noted in ended[] for
+	 * render() to clear up, since noteToVoice and active are shared.
+	 */
+	void renderPart(int part, int parts, float[] out, int off, int len, float[] scratch){
+		for(int i=part; i<voices.length; i+=parts){
+			Voice v = voices[i];
+			if(v.state == Voice.FREE){
+				continue;
+			}
+			int note = v.note;
+			if(!v.render(out, off, len, scratch)){
+				ended[i] = note;
+			}
+		}
+	}
+
+	/**
+	 * Renders with these workers from the next block (when enough voices are active),
+	 * or on the calling thread only if null.
+	 */
+	void setWorkers(VoiceWorkers workers){
+		this.workers = workers;
+	}
+
+	int size(){
+		return voices.length;
+	}
+
+	int activeVoices(){
+		return active;
+	}
+}
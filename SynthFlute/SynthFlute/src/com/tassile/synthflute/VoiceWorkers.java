@@ -0,0 +1,178 @@
+package com.tassile.synthflute;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed set of threads that render the voice pool alongside the audio thread. The
+ * voices are dealt out round robin into parts, one per thread plus one for the audio
+ * thread itself; each worker renders its part into a private buffer and the audio
+ * thread sums them into the mix once everyone is done. Voice i always lands in part
+ * i % parts, so a voice is only ever touched by one thread within a block.
+ *
+ * The barrier is a block counter and a countdown rather than a lock: the audio thread
+ * bumps the counter to start a block and spins until the countdown reaches zero;
+ * workers spin on the counter for a little while after finishing, then park until
+ * they are woken. Nothing is allocated per block.
+ *
+ * Waking threads and waiting for the slowest costs more than a few voices take to
+ * render, so below MIN_VOICES_PER_THREAD active voices per thread the pool renders
+ * on the audio thread alone as before. bench ParallelCheck measures where splitting
+ * starts to pay, and checks that the split output matches the serial one.
+ *
+ * Everything except the workers' own loop is called from the audio thread only, and
+ * shutdown() must be too (or after it has stopped), so no block is ever in flight
+ * when the workers are told to go.
+ */
+final class VoiceWorkers {
+	static final int MIN_VOICES_PER_THREAD = 4;
+	static final int SPINS = 4096; // polls of the block counter before parking
+
+	private final Worker[] workers;
+	private final int parts;
+	private final AtomicInteger pending = new AtomicInteger();
+	private int minVoicesPerThread = MIN_VOICES_PER_THREAD;
+	private volatile int block = 0;
+	private volatile boolean running = true;
+
+	// the current job, written before block is bumped
+	private VoicePool pool;
+	private int len;
+	private float[][] buffers;
+	private final float[][] scratch;
+
+	private long parallelBlocks = 0;
+	private long serialBlocks = 0;
+
+	/**
+	 * Starts threads-1 workers; the audio thread is the last one.
+	 */
+	VoiceWorkers(int threads){
+		if(threads < 2){
+			throw new IllegalArgumentException("need at least two threads, got " + threads);
+		}
+		parts = threads;
+		workers = new Worker[threads - 1];
+		buffers = new float[threads][0];
+		scratch = new float[threads][0];
+		for(int i=0; i<workers.length; i++){
+			workers[i] = new Worker(i + 1);
+			workers[i].start();
+		}
+	}
+
+	int threads(){
+		return parts;
+	}
+
+	/**
+	 * Whether a block with this many active voices is worth splitting up.
+	 */
+	boolean worthIt(int activeVoices){
+		return activeVoices >= parts*minVoicesPerThread;
+	}
+
+	/**
+	 * Moves the threshold, for measuring it. Audio thread only.
+	 */
+	void setMinVoicesPerThread(int voices){
+		minVoicesPerThread = Math.max(1, voices);
+	}
+
+	/**
+	 * Renders every part of the pool and adds them into buf. Returns once all of them
+	 * are in.
+	 */
+	void render(VoicePool p, float[] buf, int off, int n){
+		if(scratch[0].length < n){
+			for(int i=0; i<parts; i++){
+				buffers[i] = new float[n];
+				scratch[i] = new float[n];
+			}
+		}
+		pool = p;
+		len = n;
+		pending.set(workers.length);
+		block++; // single writer
+		for(int i=0; i<workers.length; i++){
+			Worker w = workers[i];
+			if(w.parked){
+				LockSupport.unpark(w);
+			}
+		}
+
+		p.renderPart(0, parts, buf, off, n, scratch[0]);
+
+		int spins = 0;
+		while(pending.get() != 0){
+			if(++spins > SPINS){
+				Thread.yield();
+			}
+		}
+		for(int i=1; i<parts; i++){
+			final float[] b = buffers[i];
+			for(int j=0; j<n; j++){
+				buf[off+j] += b[j];
+			}
+		}
+		parallelBlocks++;
+	}
+
+	void countSerial(){
+		serialBlocks++;
+	}
+
+	/**
+	 * Stops the workers. Only from the audio thread, or once it has stopped.
+	 */
+	void shutdown(){
+		running = false;
+		for(int i=0; i<workers.length; i++){
+			LockSupport.unpark(workers[i]);
+		}
+	}
+
+	public String toString(){
+		return parts + " threads, " + parallelBlocks + " blocks split, " + serialBlocks + " on one thread";
+	}
+
+	private final class Worker extends Thread {
+		private final int part;
+		volatile boolean parked = false;
+
+		Worker(int part){
+			this.part = part;
+			setName("VoiceWorker-" + part);
+			setDaemon(true);
+		}
+
+		public void run(){
+			setPriority(Thread.MAX_PRIORITY);
+			int seen = 0;
+			while(running){
+				int b = block;
+				for(int s=0; b == seen && s < SPINS; s++){
+					b = block;
+				}
+				if(b == seen){
+					// announce the park before the last look, so render() either sees
+					// parked or this sees the new block
+					parked = true;
+					if(block == seen && running){
+						LockSupport.park(this);
+					}
+					parked = false;
+					continue;
+				}
+				seen = b;
+				final float[] out = buffers[part];
+				final int n = len;
+				for(int i=0; i<n; i++){
+					out[i] = 0f;
+				}
+				pool.renderPart(part, parts, out, 0, n, scratch[part]);
+				pending.decrementAndGet();
+			}
+		}
+	}
+}
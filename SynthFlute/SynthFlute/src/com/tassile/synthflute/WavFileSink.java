@@ -0,0 +1,45 @@
+package com.tassile.synthflute;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * AudioSink that writes a 16-bit mono WAV file, as fast as it's given samples.
+ */
+class WavFileSink implements AudioSink {
+	private final int sr;
+	private final WavWriter out;
+
+	WavFileSink(File f, int sr) throws IOException {
+		this.sr = sr;
+		out = new WavWriter(f, sr);
+	}
+
+	public int sampleRate(){
+		return sr;
+	}
+
+	public void start(){
+	}
+
+	public int write(short[] buf, int off, int len) throws IOException {
+		out.write(buf, off, len);
+		return len;
+	}
+
+	public int bufferFrames(){
+		return 0;
+	}
+
+	public long framesPlayed(){
+		return -1;
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	long frames(){
+		return out.frames();
+	}
+}
@@ -0,0 +1,88 @@
+package com.tassile.synthflute;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Writes 16-bit mono PCM WAV files. The header is written with zero sizes up front and
+ * patched in close(), so samples can be streamed in without knowing the length.
+ */
+class WavWriter {
+	private static final int HEADER_BYTES = 44;
+
+	private final RandomAccessFile file;
+	private final int sr;
+	private final byte[] bytes;
+	private long frames = 0;
+
+	WavWriter(File f, int sr) throws IOException {
+		this.sr = sr;
+		file = new RandomAccessFile(f, "rw");
+		file.setLength(0);
+		bytes = new byte[8192];
+		writeHeader(0);
+	}
+
+	void write(short[] samples, int off, int len) throws IOException {
+		while(len > 0){
+			int n = Math.min(len, bytes.length/2);
+			for(int i=0; i<n; i++){
+				short s = samples[off+i];
+				bytes[2*i] = (byte) s;
+				bytes[2*i+1] = (byte) (s >> 8);
+			}
+			file.write(bytes, 0, 2*n);
+			frames += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	long frames(){
+		return frames;
+	}
+
+	void close() throws IOException {
+		try {
+			file.seek(0);
+			writeHeader(frames*2);
+		} finally {
+			file.close();
+		}
+	}
+
+	private void writeHeader(long dataBytes) throws IOException {
+		byte[] h = new byte[HEADER_BYTES];
+		ascii(h, 0, "RIFF");
+		le32(h, 4, (int) (36 + dataBytes));
+		ascii(h, 8, "WAVE");
+		ascii(h, 12, "fmt ");
+		le32(h, 16, 16);     // fmt chunk size
+		le16(h, 20, 1);      // PCM
+		le16(h, 22, 1);      // mono
+		le32(h, 24, sr);
+		le32(h, 28, sr*2);   // byte rate
+		le16(h, 32, 2);      // block align
+		le16(h, 34, 16);     // bits per sample
+		ascii(h, 36, "data");
+		le32(h, 40, (int) dataBytes);
+		file.write(h);
+	}
+
+	private static void ascii(byte[] b, int off, String s){
+		for(int i=0; i<s.length(); i++){
+			b[off+i] = (byte) s.charAt(i);
+		}
+	}
+
+	private static void le16(byte[] b, int off, int v){
+		b[off] = (byte) v;
+		b[off+1] = (byte) (v >> 8);
+	}
+
+	private static void le32(byte[] b, int off, int v){
+		le16(b, off, v);
+		le16(b, off+2, v >> 16);
+	}
+}